@@ -2,78 +2,227 @@
 
 package biz.neustar.hopper.message;
 
+import java.util.Arrays;
+
 import biz.neustar.hopper.config.Options;
 
 /**
- * DNS Name Compression object.
- * 
+ * DNS Name Compression object. Maps each name, and each suffix of a name,
+ * written to a message to its position in the message. A suffix is kept as
+ * the name it was written with and the index of its first label, so no Name
+ * is created to look one up. Entries live in an open addressed table that
+ * grows as needed, and a table can be reset and used for another message.
+ *
  * @see Message
  * @see Name
- * 
+ *
  * @author Brian Wellington
  */
 
 public class Compression {
 
-    private static class Entry {
-        Name name;
-        int pos;
-        Entry next;
-    }
-
-    private static final int TABLE_SIZE = 17;
+    private static final int INITIAL_SIZE = 64;
+    private static final int MAX_RETAINED_SIZE = 1024;
     private static final int MAX_POINTER = 0x3FFF;
-    private Entry[] table;
-    private boolean verbose = Options.check("verbosecompression");
+
+    private static final ThreadLocal<Compression> perThread =
+            new ThreadLocal<Compression>() {
+
+        @Override
+        protected Compression initialValue() {
+            return new Compression();
+        }
+    };
+
+    private Name[] names;
+    private int[] labels;
+    private int[] hashes;
+    private int[] positions;
+    private int count;
+    private boolean verbose;
+    private boolean inUse;
+
+    /* The last suffix hashed, so that add() after get() does not rehash. */
+    private Name lastName;
+    private int lastLabel;
+    private int lastHash;
 
     /**
      * Creates a new Compression object.
      */
     public Compression() {
-        table = new Entry[TABLE_SIZE];
+        allocate(INITIAL_SIZE);
+        verbose = Options.check("verbosecompression");
+    }
+
+    /**
+     * Returns this thread's Compression object, or a new one if it is
+     * already in use. Hand it back with {@link #release()}.
+     */
+    static Compression acquire() {
+        Compression c = perThread.get();
+        if (c.inUse) {
+            return new Compression();
+        }
+        c.inUse = true;
+        return c;
+    }
+
+    /**
+     * Hands back an object obtained from {@link #acquire()}, reset so that
+     * the table does not keep the names of the message alive.
+     */
+    void release() {
+        reset();
+        inUse = false;
+    }
+
+    private void allocate(int size) {
+        names = new Name[size];
+        labels = new int[size];
+        hashes = new int[size];
+        positions = new int[size];
+        count = 0;
+    }
+
+    /**
+     * Removes all entries, so that the object can be used for another
+     * message.
+     */
+    public void reset() {
+        if (names.length > MAX_RETAINED_SIZE) {
+            allocate(INITIAL_SIZE);
+        } else {
+            Arrays.fill(names, null);
+            count = 0;
+        }
+        lastName = null;
+        verbose = Options.check("verbosecompression");
+    }
+
+    /**
+     * Removes the entries at or after a position, after the message has been
+     * cut back to it.
+     *
+     * @param pos
+     *            The new end of the message.
+     */
+    public void truncate(int pos) {
+        Name[] oldNames = names;
+        int[] oldLabels = labels;
+        int[] oldHashes = hashes;
+        int[] oldPositions = positions;
+        allocate(oldNames.length);
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null && oldPositions[i] < pos) {
+                insert(oldNames[i], oldLabels[i], oldHashes[i],
+                        oldPositions[i]);
+            }
+        }
+        lastName = null;
+    }
+
+    private int hash(Name name, int label) {
+        if (name != lastName || label != lastLabel) {
+            lastName = name;
+            lastLabel = label;
+            lastHash = name.suffixHash(label);
+        }
+        return lastHash;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void insert(Name name, int label, int hash, int pos) {
+        int mask = names.length - 1;
+        int slot = spread(hash) & mask;
+        while (names[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        names[slot] = name;
+        labels[slot] = label;
+        hashes[slot] = hash;
+        positions[slot] = pos;
+        count++;
+    }
+
+    private void grow() {
+        Name[] oldNames = names;
+        int[] oldLabels = labels;
+        int[] oldHashes = hashes;
+        int[] oldPositions = positions;
+        allocate(oldNames.length * 2);
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                insert(oldNames[i], oldLabels[i], oldHashes[i],
+                        oldPositions[i]);
+            }
+        }
     }
 
     /**
      * Adds a compression entry mapping a name to a position in a message.
-     * 
+     *
      * @param pos
      *            The position at which the name is added.
      * @param name
      *            The name being added to the message.
      */
     public void add(int pos, Name name) {
+        add(pos, name, 0);
+    }
+
+    /**
+     * Adds a compression entry mapping the suffix of a name starting at a
+     * label to a position in a message.
+     */
+    void add(int pos, Name name, int label) {
         if (pos > MAX_POINTER) {
             return;
         }
-        int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
-        Entry entry = new Entry();
-        entry.name = name;
-        entry.pos = pos;
-        entry.next = table[row];
-        table[row] = entry;
+        if ((count + 1) * 2 > names.length) {
+            grow();
+        }
+        insert(name, label, hash(name, label), pos);
         if (verbose) {
-            System.err.println("Adding " + name + " at " + pos);
+            System.err.println("Adding " + name + " (label " + label
+                    + ") at " + pos);
         }
     }
 
     /**
      * Retrieves the position of the given name, if it has been previously
      * included in the message.
-     * 
+     *
      * @param name
      *            The name to find in the compression table.
      * @return The position of the name, or -1 if not found.
      */
     public int get(Name name) {
-        int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
+        return get(name, 0);
+    }
+
+    /**
+     * Retrieves the position of the suffix of a name starting at a label, if
+     * it has been previously included in the message.
+     */
+    int get(Name name, int label) {
+        int hash = hash(name, label);
+        int mask = names.length - 1;
         int pos = -1;
-        for (Entry entry = table[row]; entry != null; entry = entry.next) {
-            if (entry.name.equals(name)) {
-                pos = entry.pos;
+        for (int slot = spread(hash) & mask; names[slot] != null;
+                slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash
+                    && name.suffixEquals(label, names[slot], labels[slot])) {
+                pos = positions[slot];
+                break;
             }
         }
         if (verbose) {
-            System.err.println("Looking for " + name + ", found " + pos);
+            System.err.println("Looking for " + name + " (label " + label
+                    + "), found " + pos);
         }
         return pos;
     }
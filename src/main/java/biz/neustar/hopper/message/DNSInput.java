@@ -2,17 +2,24 @@
 
 package biz.neustar.hopper.message;
 
+import java.nio.ByteBuffer;
+
 import biz.neustar.hopper.exception.WireParseException;
 
 /**
- * An class for parsing DNS messages.
+ * An class for parsing DNS messages. The input may be a byte array, a region
+ * of a byte array or a {@link ByteBuffer} (heap or direct); the data is read in
+ * place and never copied up front. All positions are relative to the start of
+ * the message.
  * 
  * @author Brian Wellington
  */
 
 public class DNSInput {
 
-    private byte[] array;
+    private ByteBuffer buffer;
+    private int base;
+    private int length;
     private int pos;
     private int end;
     private int saved_pos;
@@ -25,9 +32,37 @@ public class DNSInput {
      *            The byte array to read from
      */
     public DNSInput(byte[] input) {
-        array = input;
+        this(ByteBuffer.wrap(input));
+    }
+
+    /**
+     * Creates a new DNSInput over a region of a byte array.
+     * 
+     * @param input
+     *            The byte array to read from
+     * @param offset
+     *            The offset of the message within the array
+     * @param len
+     *            The length of the message
+     */
+    public DNSInput(byte[] input, int offset, int len) {
+        this(ByteBuffer.wrap(input, offset, len));
+    }
+
+    /**
+     * Creates a new DNSInput over the remaining bytes of a buffer. The
+     * buffer's position and limit are not modified; the message is taken to
+     * start at the current position.
+     * 
+     * @param input
+     *            The buffer to read from
+     */
+    public DNSInput(ByteBuffer input) {
+        buffer = input;
+        base = input.position();
+        length = input.remaining();
         pos = 0;
-        end = array.length;
+        end = length;
         saved_pos = -1;
         saved_end = -1;
     }
@@ -53,6 +88,21 @@ public class DNSInput {
         }
     }
 
+    private int get(int index) {
+        return buffer.get(base + index) & 0xFF;
+    }
+
+    private void copy(int index, byte[] b, int off, int len) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + base
+                    + index, b, off, len);
+        } else {
+            for (int i = 0; i < len; i++) {
+                b[off + i] = buffer.get(base + index + i);
+            }
+        }
+    }
+
     /**
      * Marks the following bytes in the stream as active.
      * 
@@ -63,7 +113,7 @@ public class DNSInput {
      *             remainder of the input.
      */
     public void setActive(int len) {
-        if (len > array.length - pos) {
+        if (len > length - pos) {
             throw new IllegalArgumentException("cannot set active "
                     + "region past end of input");
         }
@@ -75,7 +125,7 @@ public class DNSInput {
      * restricted to part of the input.
      */
     public void clearActive() {
-        end = array.length;
+        end = length;
     }
 
     /**
@@ -94,7 +144,7 @@ public class DNSInput {
      *            The end of the active region.
      */
     public void restoreActive(int pos) {
-        if (pos > array.length) {
+        if (pos > length) {
             throw new IllegalArgumentException("cannot set active "
                     + "region past end of input");
         }
@@ -111,12 +161,12 @@ public class DNSInput {
      *             The index is not within the input.
      */
     public void jump(int index) {
-        if (index >= array.length) {
+        if (index >= length) {
             throw new IllegalArgumentException("cannot jump past "
                     + "end of input");
         }
         pos = index;
-        end = array.length;
+        end = length;
     }
 
     /**
@@ -153,7 +203,7 @@ public class DNSInput {
      */
     public int readU8() throws WireParseException {
         require(1);
-        return (array[pos++] & 0xFF);
+        return get(pos++);
     }
 
     /**
@@ -165,8 +215,8 @@ public class DNSInput {
      */
     public int readU16() throws WireParseException {
         require(2);
-        int b1 = array[pos++] & 0xFF;
-        int b2 = array[pos++] & 0xFF;
+        int b1 = get(pos++);
+        int b2 = get(pos++);
         return ((b1 << 8) + b2);
     }
 
@@ -179,10 +229,10 @@ public class DNSInput {
      */
     public long readU32() throws WireParseException {
         require(4);
-        int b1 = array[pos++] & 0xFF;
-        int b2 = array[pos++] & 0xFF;
-        int b3 = array[pos++] & 0xFF;
-        int b4 = array[pos++] & 0xFF;
+        int b1 = get(pos++);
+        int b2 = get(pos++);
+        int b3 = get(pos++);
+        int b4 = get(pos++);
         return (((long) b1 << 24) + (b2 << 16) + (b3 << 8) + b4);
     }
 
@@ -202,7 +252,20 @@ public class DNSInput {
     public void readByteArray(byte[] b, int off, int len)
             throws WireParseException {
         require(len);
-        System.arraycopy(array, pos, b, off, len);
+        copy(pos, b, off, len);
+        pos += len;
+    }
+
+    /**
+     * Skips over a number of bytes of the stream.
+     * 
+     * @param len
+     *            The number of bytes to skip.
+     * @throws WireParseException
+     *             The end of the stream was reached.
+     */
+    public void skip(int len) throws WireParseException {
+        require(len);
         pos += len;
     }
 
@@ -216,7 +279,7 @@ public class DNSInput {
     public byte[] readByteArray(int len) throws WireParseException {
         require(len);
         byte[] out = new byte[len];
-        System.arraycopy(array, pos, out, 0, len);
+        copy(pos, out, 0, len);
         pos += len;
         return out;
     }
@@ -230,7 +293,7 @@ public class DNSInput {
     public byte[] readByteArray() {
         int len = remaining();
         byte[] out = new byte[len];
-        System.arraycopy(array, pos, out, 0, len);
+        copy(pos, out, 0, len);
         pos += len;
         return out;
     }
@@ -245,7 +308,7 @@ public class DNSInput {
      */
     public byte[] readCountedString() throws WireParseException {
         require(1);
-        int len = array[pos++] & 0xFF;
+        int len = get(pos++);
         return readByteArray(len);
     }
 
@@ -2,15 +2,24 @@
 
 package biz.neustar.hopper.message;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
- * A class for rendering DNS messages.
+ * A class for rendering DNS messages. By default the output grows as needed;
+ * it may instead render straight into the remaining space of a caller-supplied
+ * {@link ByteBuffer} (heap or direct), in which case writing past the buffer's
+ * limit raises a {@link BufferOverflowException}. All positions are relative
+ * to the start of the message.
  * 
  * @author Brian Wellington
  */
 
 public class DNSOutput {
 
-    private byte[] array;
+    private ByteBuffer buffer;
+    private int base;
+    private final boolean growable;
     private int pos;
     private int saved_pos;
 
@@ -21,7 +30,25 @@ public class DNSOutput {
      *            The initial size
      */
     public DNSOutput(int size) {
-        array = new byte[size];
+        buffer = ByteBuffer.wrap(new byte[size]);
+        base = 0;
+        growable = true;
+        pos = 0;
+        saved_pos = -1;
+    }
+
+    /**
+     * Create a new DNSOutput that renders into the remaining bytes of a
+     * buffer, starting at its current position. The buffer's position and
+     * limit are not modified.
+     * 
+     * @param dst
+     *            The buffer to render into
+     */
+    public DNSOutput(ByteBuffer dst) {
+        buffer = dst.duplicate();
+        base = dst.position();
+        growable = false;
         pos = 0;
         saved_pos = -1;
     }
@@ -50,16 +77,23 @@ public class DNSOutput {
     }
 
     private void need(int n) {
-        if (array.length - pos >= n) {
+        if (buffer.limit() - base - pos >= n) {
             return;
         }
-        int newsize = array.length * 2;
+        if (!growable) {
+            throw new BufferOverflowException();
+        }
+        int newsize = buffer.capacity() * 2;
         if (newsize < pos + n) {
             newsize = pos + n;
         }
         byte[] newarray = new byte[newsize];
-        System.arraycopy(array, 0, newarray, 0, pos);
-        array = newarray;
+        System.arraycopy(buffer.array(), 0, newarray, 0, pos);
+        buffer = ByteBuffer.wrap(newarray);
+    }
+
+    private void put(int index, int val) {
+        buffer.put(base + index, (byte) val);
     }
 
     /**
@@ -108,7 +142,7 @@ public class DNSOutput {
     public void writeU8(int val) {
         check(val, 8);
         need(1);
-        array[pos++] = (byte) (val & 0xFF);
+        put(pos++, val & 0xFF);
     }
 
     /**
@@ -120,8 +154,8 @@ public class DNSOutput {
     public void writeU16(int val) {
         check(val, 16);
         need(2);
-        array[pos++] = (byte) ((val >>> 8) & 0xFF);
-        array[pos++] = (byte) (val & 0xFF);
+        put(pos++, (val >>> 8) & 0xFF);
+        put(pos++, val & 0xFF);
     }
 
     /**
@@ -137,8 +171,8 @@ public class DNSOutput {
         if (where > pos - 2)
             throw new IllegalArgumentException("cannot write past "
                     + "end of data");
-        array[where++] = (byte) ((val >>> 8) & 0xFF);
-        array[where++] = (byte) (val & 0xFF);
+        put(where++, (val >>> 8) & 0xFF);
+        put(where++, val & 0xFF);
     }
 
     /**
@@ -150,10 +184,10 @@ public class DNSOutput {
     public void writeU32(long val) {
         check(val, 32);
         need(4);
-        array[pos++] = (byte) ((val >>> 24) & 0xFF);
-        array[pos++] = (byte) ((val >>> 16) & 0xFF);
-        array[pos++] = (byte) ((val >>> 8) & 0xFF);
-        array[pos++] = (byte) (val & 0xFF);
+        put(pos++, (int) ((val >>> 24) & 0xFF));
+        put(pos++, (int) ((val >>> 16) & 0xFF));
+        put(pos++, (int) ((val >>> 8) & 0xFF));
+        put(pos++, (int) (val & 0xFF));
     }
 
     /**
@@ -168,7 +202,8 @@ public class DNSOutput {
      */
     public void writeByteArray(byte[] b, int off, int len) {
         need(len);
-        System.arraycopy(b, off, array, pos, len);
+        buffer.position(base + pos);
+        buffer.put(b, off, len);
         pos += len;
     }
 
@@ -194,7 +229,7 @@ public class DNSOutput {
             throw new IllegalArgumentException("Invalid counted string");
         }
         need(1 + s.length);
-        array[pos++] = (byte) (s.length & 0xFF);
+        put(pos++, s.length & 0xFF);
         writeByteArray(s, 0, s.length);
     }
 
@@ -203,7 +238,8 @@ public class DNSOutput {
      */
     public byte[] toByteArray() {
         byte[] out = new byte[pos];
-        System.arraycopy(array, 0, out, 0, pos);
+        buffer.position(base);
+        buffer.get(out, 0, pos);
         return out;
     }
 
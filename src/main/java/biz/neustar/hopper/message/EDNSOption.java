@@ -26,6 +26,9 @@ public abstract class EDNSOption {
         /** Name Server Identifier, RFC 5001 */
         public final static Code NSID = REGISTRAR.add(new Code(3, "NSID"));
 
+        /** edns-tcp-keepalive, RFC 7828 */
+        public final static Code TCP_KEEPALIVE = REGISTRAR.add(new Code(11, "TCP_KEEPALIVE"));
+
         /** Client Subnet, defined in draft-vandergaast-edns-client-subnet-00 */
         public final static Code CLIENT_SUBNET = REGISTRAR.add(new Code(20730, "CLIENT_SUBNET"));
 
@@ -133,6 +136,8 @@ public abstract class EDNSOption {
             option = new NSIDOption();
         } else if (Code.CLIENT_SUBNET.getValue() == code) {
             option = new ClientSubnetOption();
+        } else if (Code.TCP_KEEPALIVE.getValue() == code) {
+            option = new TCPKeepaliveOption();
         }
         
         option.optionFromWire(in);
@@ -3,6 +3,8 @@
 package biz.neustar.hopper.message;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -44,6 +46,20 @@ public class Message implements Cloneable {
     int tsigState;
     int sig0start;
 
+    /*
+     * The wire format of a lazily parsed message, kept until the sections are
+     * modified, and where the records of each section start in it. A section
+     * that fails to parse stays unparsed, and the wire format is no longer
+     * reused.
+     */
+    private byte[] wire;
+    private int wireEnd;
+    private int[] wireCounts;
+    private int[] wireOffsets;
+    private int[] wireRecords;
+    private boolean[] parsed;
+    private boolean wireInvalid;
+
     /* The message was not signed */
     static final int TSIG_UNSIGNED = 0;
 
@@ -148,6 +164,168 @@ public class Message implements Cloneable {
         this(new DNSInput(b));
     }
 
+    /**
+     * Creates a new Message from its DNS wire format representation, parsing
+     * the remaining bytes of the buffer in place. The buffer's position is not
+     * modified and no reference to it is kept once parsing completes.
+     * 
+     * @param b
+     *            A heap or direct buffer positioned at the start of the DNS
+     *            Message.
+     */
+    public Message(ByteBuffer b) throws IOException {
+        this(new DNSInput(b));
+    }
+
+    /**
+     * Creates a new Message from its DNS wire format representation, without
+     * parsing its records yet. The header is parsed and the records are
+     * located, and the records of a section are only parsed when the section
+     * is first accessed, so reading the header, the question or the OPT
+     * record of a message costs little more than reading its header. Until a
+     * record is added to or removed from the message, it is rendered by
+     * copying the original wire format after the current header, as long as
+     * the section counts of the header are unchanged and no TSIG key is set.
+     * The records of such a message must therefore not be modified in place.
+     * 
+     * @param b
+     *            A byte array containing the DNS Message. It is kept by the
+     *            Message and must not be modified.
+     * @throws IOException
+     *             The header or the layout of the records is invalid.
+     * @throws IllegalStateException
+     *             Thrown on the first access to a section whose records can
+     *             not be parsed.
+     */
+    public static Message newLazy(byte[] b) throws IOException {
+        DNSInput in = new DNSInput(b);
+        Message m = new Message(new Header(in));
+        m.locateRecords(in, b);
+        return m;
+    }
+
+    /**
+     * Creates a new Message from the remaining bytes of a buffer, without
+     * parsing its records yet. The bytes are copied and the buffer's position
+     * is not modified.
+     * 
+     * @param b
+     *            A heap or direct buffer positioned at the start of the DNS
+     *            Message.
+     * @see #newLazy(byte[])
+     */
+    public static Message newLazy(ByteBuffer b) throws IOException {
+        byte[] copy = new byte[b.remaining()];
+        b.duplicate().get(copy);
+        return newLazy(copy);
+    }
+
+    private void locateRecords(DNSInput in, byte[] b) throws IOException {
+        boolean truncated = header.isFlagSet(Flag.TC);
+        wire = b;
+        wireCounts = new int[4];
+        wireOffsets = new int[4];
+        wireRecords = new int[4];
+        parsed = new boolean[4];
+        wireEnd = in.current();
+        try {
+            for (int i = 0; i < 4; i++) {
+                int count = header.getCount(i);
+                wireCounts[i] = count;
+                wireOffsets[i] = in.current();
+                for (int j = 0; j < count; j++) {
+                    int pos = in.current();
+                    Name.skip(in);
+                    int type = in.readU16();
+                    in.readU16();
+                    if (i != Section.QUESTION) {
+                        in.readU32();
+                        int length = in.readU16();
+                        if (type == Type.SIG && length >= 2) {
+                            if (in.readU16() == 0) {
+                                sig0start = pos;
+                            }
+                            length -= 2;
+                        }
+                        in.skip(length);
+                    }
+                    if (type == Type.TSIG) {
+                        tsigstart = pos;
+                    }
+                    wireRecords[i]++;
+                    wireEnd = in.current();
+                }
+            }
+        } catch (WireParseException e) {
+            if (!truncated) {
+                throw e;
+            }
+        }
+        size = wireEnd;
+    }
+
+    /*
+     * Returns the records of a section, parsing them from the wire format on
+     * first access. A section that can not be parsed throws on every access.
+     */
+    private List<Record> section(int i) {
+        if (wire != null && !parsed[i]) {
+            int count = wireRecords[i];
+            if (count > 0) {
+                boolean isUpdate = (header.getOpcode() == Opcode.UPDATE);
+                DNSInput in = new DNSInput(wire);
+                in.jump(wireOffsets[i]);
+                List<Record> records = new ArrayList<Record>(count);
+                try {
+                    for (int j = 0; j < count; j++) {
+                        records.add(Record.fromWire(in, i, isUpdate));
+                    }
+                } catch (WireParseException e) {
+                    if (!header.isFlagSet(Flag.TC)) {
+                        wireInvalid = true;
+                        throw new IllegalStateException("invalid "
+                                + Section.longString(i) + " section", e);
+                    }
+                } catch (IOException e) {
+                    wireInvalid = true;
+                    throw new IllegalStateException("invalid "
+                            + Section.longString(i) + " section", e);
+                }
+                sections[i] = records;
+            }
+            parsed[i] = true;
+        }
+        return sections[i];
+    }
+
+    /*
+     * Parses any section not parsed yet and drops the wire format, before the
+     * sections are modified.
+     */
+    private void modifySections() {
+        if (wire != null) {
+            for (int i = 0; i < 4; i++) {
+                section(i);
+            }
+            wire = null;
+        }
+    }
+
+    /*
+     * Can the message be rendered from the wire format it was parsed from?
+     */
+    private boolean reuseWire() {
+        if (wire == null || wireInvalid || tsigkey != null) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (header.getCount(i) != wireCounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Replaces the Header with a new one.
      * 
@@ -173,6 +351,7 @@ public class Message implements Cloneable {
      * @see Section
      */
     public void addRecord(Record r, int section) {
+        modifySections();
         if (sections[section] == null) {
             sections[section] = new LinkedList<Record>();
         }
@@ -187,6 +366,7 @@ public class Message implements Cloneable {
      * @see Section
      */
     public boolean removeRecord(Record r, int section) {
+        modifySections();
         if (sections[section] != null && sections[section].remove(r)) {
             header.decCount(section);
             return true;
@@ -203,6 +383,7 @@ public class Message implements Cloneable {
      * @see Section
      */
     public void removeAllRecords(int section) {
+        modifySections();
         sections[section] = null;
         header.setCount(section, 0);
     }
@@ -214,7 +395,8 @@ public class Message implements Cloneable {
      * @see Section
      */
     public boolean findRecord(Record r, int section) {
-        return (sections[section] != null && sections[section].contains(r));
+        List<Record> l = section(section);
+        return (l != null && l.contains(r));
     }
 
     /**
@@ -225,7 +407,7 @@ public class Message implements Cloneable {
      */
     public boolean findRecord(Record r) {
         for (int i = Section.ANSWER; i <= Section.ADDITIONAL; i++)
-            if (sections[i] != null && sections[i].contains(r)) {
+            if (section(i) != null && section(i).contains(r)) {
                 return true;
             }
         return false;
@@ -239,11 +421,12 @@ public class Message implements Cloneable {
      * @see Section
      */
     public boolean findRRset(Name name, int type, int section) {
-        if (sections[section] == null) {
+        List<Record> l = section(section);
+        if (l == null) {
             return false;
         }
-        for (int i = 0; i < sections[section].size(); i++) {
-            Record r = (Record) sections[section].get(i);
+        for (int i = 0; i < l.size(); i++) {
+            Record r = (Record) l.get(i);
             if (r.getType() == type && name.equals(r.getName())) {
                 return true;
             }
@@ -271,7 +454,7 @@ public class Message implements Cloneable {
      * @see Section
      */
     public Record getQuestion() {
-        List<Record> l = sections[Section.QUESTION];
+        List<Record> l = section(Section.QUESTION);
         if (l == null || l.size() == 0) {
             return null;
         }
@@ -290,7 +473,7 @@ public class Message implements Cloneable {
         if (count == 0) {
             return null;
         }
-        List<Record> l = sections[Section.ADDITIONAL];
+        List<Record> l = section(Section.ADDITIONAL);
         Record rec = l.get(count - 1);
         if (rec.getType() != Type.TSIG) {
             return null;
@@ -352,10 +535,10 @@ public class Message implements Cloneable {
      * @see Section
      */
     public Record[] getSectionArray(int section) {
-        if (sections[section] == null) {
+        List<Record> l = section(section);
+        if (l == null) {
             return emptyRecordArray;
         }
-        List<Record> l = sections[section];
         return l.toArray(new Record[l.size()]);
     }
 
@@ -373,7 +556,7 @@ public class Message implements Cloneable {
      * @see Section
      */
     public RRSet[] getSectionRRsets(int section) {
-        if (sections[section] == null) {
+        if (section(section) == null) {
             return emptyRRsetArray;
         }
         List<RRSet> sets = new LinkedList<RRSet>();
@@ -405,28 +588,38 @@ public class Message implements Cloneable {
 
     void toWire(DNSOutput out) {
         header.toWire(out);
-        Compression c = new Compression();
-        for (int i = 0; i < 4; i++) {
-            if (sections[i] == null) {
-                continue;
-            }
-            for (int j = 0; j < sections[i].size(); j++) {
-                Record rec = (Record) sections[i].get(j);
-                rec.toWire(out, i, c);
+        if (reuseWire()) {
+            out.writeByteArray(wire, Header.LENGTH, wireEnd - Header.LENGTH);
+            return;
+        }
+        Compression c = Compression.acquire();
+        try {
+            for (int i = 0; i < 4; i++) {
+                List<Record> l = section(i);
+                if (l == null) {
+                    continue;
+                }
+                for (int j = 0; j < l.size(); j++) {
+                    Record rec = (Record) l.get(j);
+                    rec.toWire(out, i, c);
+                }
             }
+        } finally {
+            c.release();
         }
     }
 
     /* Returns the number of records not successfully rendered. */
     private int sectionToWire(DNSOutput out, int section, Compression c,
             int maxLength) {
-        int n = sections[section].size();
+        List<Record> l = section(section);
+        int n = l.size();
         int pos = out.current();
         int rendered = 0;
         Record lastrec = null;
 
         for (int i = 0; i < n; i++) {
-            Record rec = (Record) sections[section].get(i);
+            Record rec = (Record) l.get(i);
             if (lastrec != null && !sameSet(rec, lastrec)) {
                 pos = out.current();
                 rendered = i;
@@ -435,6 +628,7 @@ public class Message implements Cloneable {
             rec.toWire(out, section, c);
             if (out.current() > maxLength) {
                 out.jump(pos);
+                c.truncate(pos);
                 return n - rendered;
             }
         }
@@ -443,6 +637,20 @@ public class Message implements Cloneable {
 
     /* Returns true if the message could be rendered. */
     private boolean toWire(DNSOutput out, int maxLength) {
+        if (reuseWire() && wireEnd <= maxLength) {
+            header.toWire(out);
+            out.writeByteArray(wire, Header.LENGTH, wireEnd - Header.LENGTH);
+            return true;
+        }
+        Compression c = Compression.acquire();
+        try {
+            return toWire(out, maxLength, c);
+        } finally {
+            c.release();
+        }
+    }
+
+    private boolean toWire(DNSOutput out, int maxLength, Compression c) {
         if (maxLength < Header.LENGTH) {
             return false;
         }
@@ -456,10 +664,9 @@ public class Message implements Cloneable {
 
         int startpos = out.current();
         header.toWire(out);
-        Compression c = new Compression();
         for (int i = 0; i < 4; i++) {
             int skipped;
-            if (sections[i] == null) {
+            if (section(i) == null) {
                 continue;
             }
             skipped = sectionToWire(out, i, c, tempMaxLength);
@@ -514,6 +721,26 @@ public class Message implements Cloneable {
         return out.toByteArray();
     }
 
+    /**
+     * Renders the wire format representation of the Message straight into the
+     * remaining space of a buffer, and advances the buffer's position past the
+     * rendered bytes. No intermediate array is allocated.
+     * 
+     * @param dst
+     *            A heap or direct buffer to render into.
+     * @return The number of bytes written.
+     * @throws BufferOverflowException
+     *             The message does not fit in the remaining space. The
+     *             buffer's position is left unchanged.
+     */
+    public int toWire(ByteBuffer dst) {
+        DNSOutput out = new DNSOutput(dst);
+        toWire(out);
+        size = out.current();
+        dst.position(dst.position() + size);
+        return size;
+    }
+
     /**
      * Returns an array containing the wire format representation of the Message
      * with the specified maximum length. This will generate a truncated message
@@ -630,7 +857,7 @@ public class Message implements Cloneable {
     public Object clone() {
         Message m = new Message();
         for (int i = 0; i < sections.length; i++) {
-            if (sections[i] != null) {
+            if (section(i) != null) {
                 m.sections[i] = new LinkedList<Record>(sections[i]);
             }
         }
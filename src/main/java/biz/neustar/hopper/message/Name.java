@@ -69,6 +69,9 @@ public class Name implements Comparable<Name>, Serializable {
     /* Used in wildcard names. */
     private static final Name wild;
 
+    /* Holds the canonical instances returned by intern(), if set. */
+    private static volatile NameTable internTable;
+
     static {
         byteFormat.setMinimumIntegerDigits(3);
         for (int i = 0; i < lowercase.length; i++) {
@@ -365,7 +368,9 @@ public class Name implements Comparable<Name>, Serializable {
     }
 
     /**
-     * Create a new name from DNS a wire format message
+     * Create a new name from DNS a wire format message. The labels are
+     * gathered into a single buffer, following any compression pointers, and
+     * the name is allocated once they have all been read.
      * 
      * @param in
      *            A stream containing the DNS message which is currently
@@ -374,29 +379,35 @@ public class Name implements Comparable<Name>, Serializable {
     public Name(DNSInput in) throws WireParseException {
         int len, pos;
         boolean done = false;
-        byte[] label = new byte[MAXLABEL + 1];
+        byte[] scratch = new byte[MAXNAME];
+        int length = 0;
+        int labels = 0;
         boolean savedState = false;
+        boolean verbose = Options.check("verbosecompression");
 
         while (!done) {
             len = in.readU8();
             switch (len & LABEL_MASK) {
             case LABEL_NORMAL:
-                if (getlabels() >= MAXLABELS) {
+                if (labels >= MAXLABELS) {
                     throw new WireParseException("too many labels");
                 }
+                if (length + len + 1 > MAXNAME) {
+                    throw new NameTooLongException();
+                }
+                setoffset(labels++, length);
+                scratch[length] = (byte) len;
                 if (len == 0) {
-                    append(emptyLabel, 0, 1);
                     done = true;
                 } else {
-                    label[0] = (byte) len;
-                    in.readByteArray(label, 1, len);
-                    append(label, 0, 1);
+                    in.readByteArray(scratch, length + 1, len);
                 }
+                length += len + 1;
                 break;
             case LABEL_COMPRESSION:
                 pos = in.readU8();
                 pos += ((len & ~LABEL_MASK) << 8);
-                if (Options.check("verbosecompression"))
+                if (verbose)
                     System.err.println("currently " + in.current()
                             + ", pointer to " + pos);
 
@@ -408,9 +419,9 @@ public class Name implements Comparable<Name>, Serializable {
                     savedState = true;
                 }
                 in.jump(pos);
-                if (Options.check("verbosecompression"))
-                    System.err.println("current name '" + this
-                            + "', seeking to " + pos);
+                if (verbose)
+                    System.err.println("current name has " + labels
+                            + " labels, seeking to " + pos);
                 break;
             default:
                 throw new WireParseException("bad label type");
@@ -419,6 +430,35 @@ public class Name implements Comparable<Name>, Serializable {
         if (savedState) {
             in.restore();
         }
+        name = new byte[length];
+        System.arraycopy(scratch, 0, name, 0, length);
+        setlabels(labels);
+    }
+
+    /**
+     * Skips over a name in DNS wire format, up to its terminating label or its
+     * first compression pointer. The pointer itself is not followed.
+     * 
+     * @param in
+     *            A stream positioned at the start of the name.
+     */
+    static void skip(DNSInput in) throws WireParseException {
+        while (true) {
+            int len = in.readU8();
+            switch (len & LABEL_MASK) {
+            case LABEL_NORMAL:
+                if (len == 0) {
+                    return;
+                }
+                in.skip(len);
+                break;
+            case LABEL_COMPRESSION:
+                in.readU8();
+                return;
+            default:
+                throw new WireParseException("bad label type");
+            }
+        }
     }
 
     /**
@@ -701,15 +741,9 @@ public class Name implements Comparable<Name>, Serializable {
 
         int labels = labels();
         for (int i = 0; i < labels - 1; i++) {
-            Name tname;
-            if (i == 0) {
-                tname = this;
-            } else {
-                tname = new Name(this, i);
-            }
             int pos = -1;
             if (c != null) {
-                pos = c.get(tname);
+                pos = c.get(this, i);
             }
             if (pos >= 0) {
                 pos |= (LABEL_MASK << 8);
@@ -717,7 +751,7 @@ public class Name implements Comparable<Name>, Serializable {
                 return;
             } else {
                 if (c != null) {
-                    c.add(out.current(), tname);
+                    c.add(out.current(), this, i);
                 }
                 int off = offset(i);
                 out.writeByteArray(name, off, name[off] + 1);
@@ -838,6 +872,98 @@ public class Name implements Comparable<Name>, Serializable {
         return equals(d.name, d.offset(0));
     }
 
+    /**
+     * Do these two equivalent Names have the same labels in the same case?
+     */
+    final boolean sameCase(Name d) {
+        int pos = offset(0);
+        int dpos = d.offset(0);
+        int length = name.length - pos;
+        if (d.name.length - dpos != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[pos + i] != d.name[dpos + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the hashcode of the suffix of this Name starting at a label,
+     * which is the hashcode of that suffix as a Name.
+     */
+    final int suffixHash(int n) {
+        if (n == 0) {
+            return hashCode();
+        }
+        int code = 0;
+        for (int i = offset(n); i < name.length; i++) {
+            code += ((code << 3) + lowercase[(name[i] & 0xFF)]);
+        }
+        return code;
+    }
+
+    /**
+     * Are the suffixes of this Name and another, starting at the given
+     * labels, equivalent?
+     */
+    final boolean suffixEquals(int n, Name d, int dn) {
+        if (labels() - n != d.labels() - dn) {
+            return false;
+        }
+        int pos = offset(n);
+        int dpos = d.offset(dn);
+        if (name.length - pos != d.name.length - dpos) {
+            return false;
+        }
+        byte[] b = d.name;
+        while (pos < name.length) {
+            if (lowercase[(name[pos] & 0xFF)] != lowercase[(b[dpos] & 0xFF)]) {
+                return false;
+            }
+            pos++;
+            dpos++;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the table Names are interned into. Interning is disabled when no
+     * table is set, which is the default.
+     * 
+     * @param table
+     *            The table, or null to disable interning.
+     * @see #intern()
+     */
+    public static void setInternTable(NameTable table) {
+        internTable = table;
+    }
+
+    /**
+     * Returns the table Names are interned into, or null if interning is
+     * disabled.
+     */
+    public static NameTable getInternTable() {
+        return internTable;
+    }
+
+    /**
+     * Returns a canonical instance of this Name from the intern table, so
+     * that equal names share one instance. If interning is disabled, or the
+     * table holds this name in a different case, this Name is returned.
+     * 
+     * @see #setInternTable(NameTable)
+     */
+    public Name intern() {
+        NameTable table = internTable;
+        if (table == null) {
+            return this;
+        }
+        return table.intern(this);
+    }
+
     /**
      * Computes a hashcode based on the value
      */
@@ -0,0 +1,110 @@
+package biz.neustar.hopper.message;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded table of canonical Name instances, so that names seen over and
+ * over, such as zone apexes, name server targets and popular query names,
+ * share one instance and one wire form instead of being held in as many
+ * copies as they were decoded or parsed. Names are placed by their case
+ * insensitive hash, and a slot holds one name: a name that falls in a slot
+ * holding a different name takes it over. The table never grows past its
+ * capacity and needs no locking.
+ * <p>
+ * Case is preserved: a name is only replaced by an instance with the very
+ * same labels, so a name that differs from the canonical one only in case is
+ * returned as is.
+ *
+ * @see Name#setInternTable(NameTable)
+ * @see Name#intern()
+ */
+public class NameTable {
+
+    /** The capacity used by {@link #NameTable()}. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final AtomicReferenceArray<Name> slots;
+    private final int mask;
+
+    /**
+     * Create a table of the default capacity.
+     */
+    public NameTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a table.
+     *
+     * @param capacity
+     *            The maximum number of names held, rounded up to a power of
+     *            two.
+     * @throws IllegalArgumentException
+     *             The capacity is not positive or too large.
+     */
+    public NameTable(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("invalid capacity "
+                    + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<Name>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the canonical instance of a name. If the table holds a name
+     * with the same labels, in the same case, it is returned; otherwise the
+     * name becomes the canonical instance, unless the table holds the same
+     * name in a different case.
+     *
+     * @param name
+     *            The name to intern.
+     * @return The canonical instance, or the name itself.
+     */
+    public Name intern(Name name) {
+        int h = name.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        Name canonical = slots.get(slot);
+        if (canonical == name) {
+            return name;
+        }
+        if (canonical != null && canonical.equals(name)) {
+            return canonical.sameCase(name) ? canonical : name;
+        }
+        slots.set(slot, name);
+        return name;
+    }
+
+    /**
+     * Returns the number of names the table can hold.
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Returns the number of names held.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes every name from the table.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package biz.neustar.hopper.message;
+
+import biz.neustar.hopper.exception.WireParseException;
+import biz.neustar.hopper.record.OPTRecord;
+
+/**
+ * The edns-tcp-keepalive Option, defined in RFC 7828. A client sends the
+ * option without a timeout to signal that it wants to keep a TCP connection
+ * open; a server answers with the idle timeout it will apply to the
+ * connection, in units of 100 milliseconds.
+ * 
+ * @see OPTRecord
+ */
+public class TCPKeepaliveOption extends EDNSOption {
+
+    /** The largest timeout that can be expressed, in 100ms units. */
+    public static final int MAX_TIMEOUT = 0xFFFF;
+
+    private int timeout;
+
+    /**
+     * Construct an edns-tcp-keepalive option without a timeout, as sent by
+     * clients.
+     */
+    public TCPKeepaliveOption() {
+        super(EDNSOption.Code.TCP_KEEPALIVE);
+        this.timeout = -1;
+    }
+
+    /**
+     * Construct an edns-tcp-keepalive option with a timeout, as sent by
+     * servers.
+     * 
+     * @param timeout
+     *            The idle timeout in units of 100 milliseconds.
+     */
+    public TCPKeepaliveOption(int timeout) {
+        super(EDNSOption.Code.TCP_KEEPALIVE);
+        if (timeout < 0 || timeout > MAX_TIMEOUT) {
+            throw new IllegalArgumentException("\"timeout\" " + timeout
+                    + " must be in the range [0.." + MAX_TIMEOUT + "]");
+        }
+        this.timeout = timeout;
+    }
+
+    /** Does the option carry a timeout? */
+    public boolean hasTimeout() {
+        return timeout >= 0;
+    }
+
+    /**
+     * Returns the idle timeout in units of 100 milliseconds, or -1 if the
+     * option carries no timeout.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    void optionFromWire(DNSInput in) throws WireParseException {
+        int length = in.remaining();
+        if (length == 0) {
+            timeout = -1;
+        } else if (length == 2) {
+            timeout = in.readU16();
+        } else {
+            throw new WireParseException("invalid edns-tcp-keepalive length");
+        }
+    }
+
+    void optionToWire(DNSOutput out) {
+        if (hasTimeout()) {
+            out.writeU16(timeout);
+        }
+    }
+
+    String optionToString() {
+        return hasTimeout() ? String.valueOf(timeout) : "-";
+    }
+
+}
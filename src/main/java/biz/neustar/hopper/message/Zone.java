@@ -293,7 +293,7 @@ public class Zone implements Serializable {
         }
         Object types = data.get(name);
         if (types == null) {
-            data.put(name, rrset);
+            data.put(name.intern(), rrset);
             return;
         }
         int rtype = rrset.getType();
@@ -0,0 +1,32 @@
+package biz.neustar.hopper.nio;
+
+import biz.neustar.hopper.message.Message;
+
+/**
+ * Handler definition for asynchronous server side message processing. Unlike
+ * {@link ServerMessageHandler}, the response is not returned from the call;
+ * the handler passes it to the supplied {@link ResponseCallback} whenever it
+ * is ready, from any thread. A handler waiting on a backend (a database, an
+ * upstream resolver) therefore does not pin an application thread, and a
+ * small thread pool can keep many slow lookups in flight.
+ */
+public interface AsyncServerMessageHandler {
+
+    /**
+     * Handle a request from a client. Implementations should return promptly
+     * and complete the callback once the response is available.
+     *
+     * @param request The request from the client
+     * @param callback The callback to complete with the response
+     */
+    void handleRequest(final Message request, final ResponseCallback callback);
+
+    /**
+     * Handle exceptions raised while processing a client request.
+     *
+     * @param throwable
+     *            The exception occurred during request handling.
+     */
+    void handleException(final Throwable throwable);
+
+}
@@ -0,0 +1,117 @@
+package biz.neustar.hopper.nio;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a batch of queries submitted with
+ * {@link DnsClient#queryBatch(java.util.Iterator, int, QueryFutureListener)}.
+ * The batch is done once every query submitted is complete, or once the
+ * queries in flight are complete if the requests could not be pulled.
+ */
+public class BatchFuture {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean cancelled;
+    private volatile Throwable cause;
+
+    /**
+     * Count a completed query.
+     */
+    void record(final QueryFuture future) {
+        if (future.isSuccess()) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record why no more requests could be pulled.
+     */
+    void setFailure(final Throwable causeArg) {
+        cause = causeArg;
+    }
+
+    /**
+     * Mark the batch done.
+     */
+    void setDone() {
+        done.countDown();
+    }
+
+    /**
+     * Stop submitting the queries of the batch. The queries in flight still
+     * complete.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Was the batch cancelled?
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Is every query submitted complete?
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * The number of queries answered so far.
+     */
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * The number of queries failed so far.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Why no more requests could be submitted, e.g. the exception thrown by
+     * the iterator, null if there was no such failure.
+     */
+    public Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * Wait for the batch to be done.
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * Wait for the batch to be done, for at most a timeout.
+     *
+     * @param timeout
+     *            How long to wait
+     * @param unit
+     *            The unit of timeout
+     *
+     * @return true if the batch is done
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting
+     */
+    public boolean await(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+}
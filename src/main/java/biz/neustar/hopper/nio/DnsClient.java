@@ -2,9 +2,16 @@ package biz.neustar.hopper.nio;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.channels.UnresolvedAddressException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
@@ -19,19 +26,34 @@ import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.logging.LoggingHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Header;
 import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.handler.ChannelOrderedExecutor;
 import biz.neustar.hopper.nio.handler.ClientMessageHandlerInvoker;
 import biz.neustar.hopper.nio.handler.DNSMessageDecoder;
 import biz.neustar.hopper.nio.handler.DNSMessageEncoder;
+import biz.neustar.hopper.nio.handler.PacketCaptureHandler;
+import biz.neustar.hopper.nio.handler.ResponseCorrelator;
 import biz.neustar.hopper.nio.handler.TCPDecoder;
 import biz.neustar.hopper.nio.handler.TCPEncoder;
+import biz.neustar.hopper.nio.handler.VirtualThreads;
 
 /**
  * A client for the DNS protocol. This clien can sends DNS messages via TCP or
  * UDP.
+ * <p>
+ * {@link #query(Message, SocketAddress)} and
+ * {@link #queryTCP(Message, SocketAddress)} return a {@link QueryFuture} for
+ * the response, and many queries may be outstanding at once on shared
+ * channels. The responses to messages sent with sendUDP and sendTCP, and any
+ * response that matches no query, go to the {@link ClientMessageHandler}.
+ * </p>
  */
 public class DnsClient {
 
@@ -50,6 +72,36 @@ public class DnsClient {
          */
         private static final int UDP_TIMEOUT = 20;
 
+        /**
+         * The default query timeout.
+         */
+        private static final long QUERY_TIMEOUT_MILLIS = 5000;
+
+        /**
+         * The default number of UDP channels for queries.
+         */
+        private static final int UDP_CHANNEL_COUNT = 8;
+
+        /**
+         * The default number of queries sent from a UDP port.
+         */
+        private static final int UDP_CHANNEL_MAX_QUERIES = 1000;
+
+        /**
+         * The default number of TCP connections to a server.
+         */
+        private static final int TCP_MAX_CONNECTIONS = 4;
+
+        /**
+         * The default number of queries in flight on a TCP connection.
+         */
+        private static final int TCP_MAX_IN_FLIGHT = 100;
+
+        /**
+         * The default idle time before a TCP connection is closed.
+         */
+        private static final long TCP_IDLE_TIMEOUT_MILLIS = 10000;
+
         /**
          * The handler for client message.
          */
@@ -66,6 +118,17 @@ public class DnsClient {
          */
         private OrderedMemoryAwareThreadPoolExecutor omaThreadPoolExecutor;
 
+        /**
+         * Executor to run the application handler on instead of the ordered
+         * thread pool, null if none.
+         */
+        private Executor executor;
+
+        /**
+         * Whether to run the application handler on virtual threads.
+         */
+        private boolean virtualThreads = false;
+
         /**
          * Factory to create a client-side NIO-based SocketChannel. It utilizes
          * the non-blocking I/O mode.
@@ -96,14 +159,54 @@ public class DnsClient {
         private int udpTimeoutSeconds = UDP_TIMEOUT;
 
         /**
-         * The UDP client pipeline.
+         * Whether to log channel events.
+         */
+        private boolean logging = false;
+
+        /**
+         * The packet capture stage, null if none.
+         */
+        private PacketCaptureHandler packetCapture;
+
+        /**
+         * How long to wait for the response to a query.
+         */
+        private long queryTimeoutMillis = QUERY_TIMEOUT_MILLIS;
+
+        /**
+         * The number of UDP channels queries are sent from.
+         */
+        private int udpChannelCount = UDP_CHANNEL_COUNT;
+
+        /**
+         * How many queries a UDP channel sends before it is replaced.
+         */
+        private int udpChannelMaxQueries = UDP_CHANNEL_MAX_QUERIES;
+
+        /**
+         * The maximum number of TCP connections to a server.
          */
-        private final ChannelPipeline udpChannelPipeline = Channels.pipeline();
+        private int tcpMaxConnections = TCP_MAX_CONNECTIONS;
 
         /**
-         * The TCP client pipeline.
+         * The maximum number of queries in flight on a TCP connection.
          */
-        private final ChannelPipeline tcpChannelPipeline = Channels.pipeline();
+        private int tcpMaxInFlight = TCP_MAX_IN_FLIGHT;
+
+        /**
+         * How long a TCP connection without queries stays open.
+         */
+        private long tcpIdleTimeoutMillis = TCP_IDLE_TIMEOUT_MILLIS;
+
+        /**
+         * Whether to return truncated UDP responses as they are.
+         */
+        private boolean ignoreTruncation = false;
+
+        /**
+         * Hands the responses to the application thread pool, set on build.
+         */
+        private ExecutionHandler executionHandler;
 
         /**
          * The build constructor.
@@ -139,6 +242,31 @@ public class DnsClient {
             return this;
         }
 
+        /**
+         * Run the client message handler on an arbitrary executor instead of
+         * the ordered thread pool. The responses received on a channel are
+         * still handled one at a time, in order. threadPoolSize is ignored
+         * when this is set.
+         *
+         * @param executorArg The executor to set.
+         */
+        public Builder executor(final Executor executorArg) {
+            this.executor = executorArg;
+            return this;
+        }
+
+        /**
+         * Run the client message handler on virtual threads, so that
+         * handlers which block do not need a larger pool. The responses
+         * received on a channel are still handled one at a time, in order.
+         * Requires a runtime with virtual threads (Java 21 or later), see
+         * {@link VirtualThreads}. Default is false.
+         */
+        public Builder virtualThreads(final boolean virtualThreadsArg) {
+            this.virtualThreads = virtualThreadsArg;
+            return this;
+        }
+
         /**
          * Register a client side message handler to be invoked when responses
          * are received from a server.
@@ -185,6 +313,77 @@ public class DnsClient {
             return this;
         }
 
+        /**
+         * How long {@link DnsClient#query(Message, SocketAddress)} waits for
+         * a response before failing the query. Default is 5 seconds.
+         */
+        public Builder queryTimeoutMillis(final long queryTimeoutMillisArg) {
+            this.queryTimeoutMillis = queryTimeoutMillisArg;
+            return this;
+        }
+
+        /**
+         * The number of UDP channels, each on its own random port, that
+         * {@link DnsClient#query(Message, SocketAddress)} sends from. Each
+         * query picks one at random. Default is 8.
+         */
+        public Builder udpChannelCount(final int udpChannelCountArg) {
+            this.udpChannelCount = udpChannelCountArg;
+            return this;
+        }
+
+        /**
+         * How many queries a UDP channel sends before it is replaced by one
+         * on a new port. Lower values make the source port of a query harder
+         * to guess, at the cost of more binds. Default is 1000.
+         */
+        public Builder udpChannelMaxQueries(
+                final int udpChannelMaxQueriesArg) {
+            this.udpChannelMaxQueries = udpChannelMaxQueriesArg;
+            return this;
+        }
+
+        /**
+         * The maximum number of connections
+         * {@link DnsClient#queryTCP(Message, SocketAddress)} opens to a
+         * server. Default is 4.
+         */
+        public Builder tcpMaxConnections(final int tcpMaxConnectionsArg) {
+            this.tcpMaxConnections = tcpMaxConnectionsArg;
+            return this;
+        }
+
+        /**
+         * The maximum number of queries in flight on a TCP connection. When
+         * every connection to a server is full, another is opened, up to
+         * tcpMaxConnections; past that the queries wait for a free slot.
+         * Default is 100.
+         */
+        public Builder tcpMaxInFlight(final int tcpMaxInFlightArg) {
+            this.tcpMaxInFlight = tcpMaxInFlightArg;
+            return this;
+        }
+
+        /**
+         * Close a TCP connection that has carried no query for this long.
+         * Default is 10 seconds.
+         */
+        public Builder tcpIdleTimeoutMillis(
+                final long tcpIdleTimeoutMillisArg) {
+            this.tcpIdleTimeoutMillis = tcpIdleTimeoutMillisArg;
+            return this;
+        }
+
+        /**
+         * Return truncated responses to
+         * {@link DnsClient#query(Message, SocketAddress)} as they are, rather
+         * than retrying the query over TCP. Default is false.
+         */
+        public Builder ignoreTruncation(final boolean ignoreTruncationArg) {
+            this.ignoreTruncation = ignoreTruncationArg;
+            return this;
+        }
+
         /**
          * Indicate if the connection should be closed after the response is
          * received. Default is false.
@@ -196,6 +395,25 @@ public class DnsClient {
             return this;
         }
 
+        /**
+         * Log every channel event, with hex dumps of the messages, at DEBUG
+         * level. Default is false.
+         */
+        public Builder logging(final boolean loggingArg) {
+            this.logging = loggingArg;
+            return this;
+        }
+
+        /**
+         * Capture a sample of the messages sent and received. Default is no
+         * capture.
+         */
+        public Builder packetCapture(
+                final PacketCaptureHandler packetCaptureArg) {
+            this.packetCapture = packetCaptureArg;
+            return this;
+        }
+
         /**
          * Obtain a new Client.
          */
@@ -206,37 +424,39 @@ public class DnsClient {
                 throw new IllegalStateException("clientMessageHandler must be set");
             }
 
+            if ((omaThreadPoolExecutor != null ? 1 : 0)
+                    + (executor != null ? 1 : 0)
+                    + (virtualThreads ? 1 : 0) > 1) {
+                throw new IllegalStateException("only one of"
+                        + " orderedMemoryAwareThreadPoolExecutor, executor and"
+                        + " virtualThreads may be set");
+            }
+            if (virtualThreads && !VirtualThreads.isSupported()) {
+                throw new IllegalStateException(
+                        "virtualThreads requires a runtime with virtual threads");
+            }
+            if (udpChannelCount < 1 || udpChannelMaxQueries < 1) {
+                throw new IllegalStateException("udpChannelCount and"
+                        + " udpChannelMaxQueries must be positive");
+            }
+            if (tcpMaxConnections < 1 || tcpMaxInFlight < 1) {
+                throw new IllegalStateException("tcpMaxConnections and"
+                        + " tcpMaxInFlight must be positive");
+            }
+
             // set up the application side thread pool
-            OrderedMemoryAwareThreadPoolExecutor omaThreadPoolExecutorArg =
-                    this.omaThreadPoolExecutor != null ? this.omaThreadPoolExecutor
-                            : new OrderedMemoryAwareThreadPoolExecutor(threadPoolSize, 0, 0);
-            // client handler invoker
-            ClientMessageHandlerInvoker clientMessageHandlerInvoker = new ClientMessageHandlerInvoker(
-                    clientMessageHandler, closeConnectionOnMessageReceipt);
-
-            // build the pipeline
-            udpChannelPipeline.addLast("Logger", new LoggingHandler());
-            udpChannelPipeline.addLast("MessageDecoder",
-                    new DNSMessageDecoder());
-            udpChannelPipeline.addLast("MessageEncoder",
-                    new DNSMessageEncoder());
-            udpChannelPipeline.addLast("ApplicationThreadPool",
-                    new ExecutionHandler(
-                            omaThreadPoolExecutorArg));
-            udpChannelPipeline.addLast("ClientMessageHandlerInvoker",
-                    clientMessageHandlerInvoker);
-
-            tcpChannelPipeline.addLast("Logger", new LoggingHandler());
-            tcpChannelPipeline.addLast("TCPDecoder", new TCPDecoder());
-            tcpChannelPipeline.addLast("TCPEncoder", new TCPEncoder());
-            tcpChannelPipeline.addLast("MessageDecoder",
-                    new DNSMessageDecoder());
-            tcpChannelPipeline.addLast("MessageEncoder",
-                    new DNSMessageEncoder());
-            tcpChannelPipeline.addLast("ApplicationThreadPool",
-                    new ExecutionHandler(omaThreadPoolExecutorArg));
-            tcpChannelPipeline.addLast("ClientMessageHandlerInvoker",
-                    clientMessageHandlerInvoker);
+            Executor omaThreadPoolExecutorArg;
+            if (virtualThreads) {
+                omaThreadPoolExecutorArg = new ChannelOrderedExecutor(
+                        VirtualThreads.newExecutor());
+            } else if (executor != null) {
+                omaThreadPoolExecutorArg = new ChannelOrderedExecutor(executor);
+            } else {
+                omaThreadPoolExecutorArg = this.omaThreadPoolExecutor != null
+                        ? this.omaThreadPoolExecutor
+                        : new OrderedMemoryAwareThreadPoolExecutor(threadPoolSize, 0, 0);
+            }
+            executionHandler = new ExecutionHandler(omaThreadPoolExecutorArg);
 
             return new DnsClient(this);
         }
@@ -244,6 +464,16 @@ public class DnsClient {
 
     private static final int MILLIS_PER_SECOND = 1000;
 
+    /**
+     * The largest message ID.
+     */
+    private static final int MAX_ID = 0xFFFF;
+
+    /**
+     * How many random IDs to try for a query before giving up.
+     */
+    private static final int MAX_ID_ATTEMPTS = 16;
+
     /**
      * The logger.
      */
@@ -264,6 +494,66 @@ public class DnsClient {
      */
     private final ClientBootstrap tcpBootstrap;
 
+    /**
+     * Whether to log channel events.
+     */
+    private final boolean logging;
+
+    /**
+     * The packet capture stage, null if none.
+     */
+    private final PacketCaptureHandler packetCapture;
+
+    /**
+     * Hands the responses to the application thread pool.
+     */
+    private final ExecutionHandler executionHandler;
+
+    /**
+     * The handler for the responses that match no query.
+     */
+    private final ClientMessageHandler clientMessageHandler;
+
+    /**
+     * Whether to close channels after receiving a response.
+     */
+    private final boolean closeConnectionOnMessageReceipt;
+
+    /**
+     * How long to wait for the response to a query.
+     */
+    private final long queryTimeoutMillis;
+
+    /**
+     * Drives the query timeouts.
+     */
+    private final Timer timer;
+
+    /**
+     * Matches responses to the queries in flight.
+     */
+    private final ResponseCorrelator responseCorrelator;
+
+    /**
+     * Picks the ports and IDs of the queries.
+     */
+    private final Random random = new SecureRandom();
+
+    /**
+     * The UDP channels the queries are sent from.
+     */
+    private final UdpChannelPool udpChannels;
+
+    /**
+     * The TCP connections the queries are sent on.
+     */
+    private final TcpConnectionPool tcpConnections;
+
+    /**
+     * Whether to return truncated UDP responses as they are.
+     */
+    private final boolean ignoreTruncation;
+
     /**
      * Obtain a new client builder.
      */
@@ -286,16 +576,30 @@ public class DnsClient {
      */
     public DnsClient(final Builder builder) {
 
+        logging = builder.logging;
+        packetCapture = builder.packetCapture;
+        executionHandler = builder.executionHandler;
+        clientMessageHandler = builder.clientMessageHandler;
+        closeConnectionOnMessageReceipt =
+                builder.closeConnectionOnMessageReceipt;
+        queryTimeoutMillis = builder.queryTimeoutMillis;
+        ignoreTruncation = builder.ignoreTruncation;
+        timer = new HashedWheelTimer();
+        responseCorrelator = new ResponseCorrelator(timer);
+
         udpBootstrap = new ConnectionlessBootstrap(builder.nioDChannelFactory);
         udpBootstrap.setOptions(builder.options);
         udpBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 
             @Override
             public ChannelPipeline getPipeline() throws Exception {
-                return builder.udpChannelPipeline;
+                return newUdpPipeline();
             }
         });
         udpTimeoutSeconds = builder.udpTimeoutSeconds;
+        udpChannels = new UdpChannelPool(udpBootstrap, timer, random,
+                builder.udpChannelCount, builder.udpChannelMaxQueries,
+                queryTimeoutMillis);
 
         // Configure the TCP client.
         tcpBootstrap = new ClientBootstrap(builder.nioCSChannelFactory);
@@ -304,10 +608,463 @@ public class DnsClient {
 
             @Override
             public ChannelPipeline getPipeline() {
-                return builder.tcpChannelPipeline;
+                return newTcpPipeline();
+            }
+        });
+        tcpConnections = new TcpConnectionPool(tcpBootstrap, timer,
+                builder.tcpMaxConnections, builder.tcpMaxInFlight,
+                builder.tcpIdleTimeoutMillis, queryTimeoutMillis);
+
+    }
+
+    /**
+     * Build the pipeline of a UDP channel.
+     */
+    private ChannelPipeline newUdpPipeline() {
+
+        ChannelPipeline pipeline = Channels.pipeline();
+        if (logging) {
+            pipeline.addLast("Logger", new LoggingHandler());
+        }
+        if (packetCapture != null) {
+            pipeline.addLast("PacketCapture", packetCapture);
+        }
+        pipeline.addLast("MessageDecoder", new DNSMessageDecoder());
+        pipeline.addLast("MessageEncoder", new DNSMessageEncoder());
+        pipeline.addLast("ApplicationThreadPool", executionHandler);
+        pipeline.addLast("ResponseCorrelator", responseCorrelator);
+        pipeline.addLast("ClientMessageHandlerInvoker",
+                new ClientMessageHandlerInvoker(clientMessageHandler,
+                        closeConnectionOnMessageReceipt));
+        return pipeline;
+    }
+
+    /**
+     * Build the pipeline of a TCP connection.
+     */
+    private ChannelPipeline newTcpPipeline() {
+
+        ChannelPipeline pipeline = Channels.pipeline();
+        if (logging) {
+            pipeline.addLast("Logger", new LoggingHandler());
+        }
+        pipeline.addLast("TCPDecoder", new TCPDecoder());
+        pipeline.addLast("TCPEncoder", new TCPEncoder());
+        if (packetCapture != null) {
+            pipeline.addLast("PacketCapture", packetCapture);
+        }
+        pipeline.addLast("MessageDecoder", new DNSMessageDecoder());
+        pipeline.addLast("MessageEncoder", new DNSMessageEncoder());
+        pipeline.addLast("ApplicationThreadPool", executionHandler);
+        pipeline.addLast("ResponseCorrelator", responseCorrelator);
+        pipeline.addLast("ClientMessageHandlerInvoker",
+                new ClientMessageHandlerInvoker(clientMessageHandler,
+                        closeConnectionOnMessageReceipt));
+        return pipeline;
+    }
+
+    /**
+     * Send a query via UDP and obtain a future for the response. The query
+     * is given a random message ID and sent from one of a pool of channels on
+     * random ports. The response must come from the destination to that port
+     * and repeat the ID and the question, otherwise it is ignored, which
+     * makes forged responses hard to get accepted. Matched responses are not
+     * passed to the {@link ClientMessageHandler}. A truncated response is
+     * not returned: the query is sent again over TCP, see
+     * {@link #queryTCP(Message, SocketAddress)}, and the future completes
+     * with the full response, unless {@link Builder#ignoreTruncation(boolean)}
+     * is set. The query fails if no response arrives within the query
+     * timeout. The message must not be sent again while it is in flight.
+     *
+     * @param query
+     *            The DNS query
+     * @param destination
+     *            The server to query
+     *
+     * @return The future response
+     */
+    public QueryFuture query(final Message query,
+            final SocketAddress destination) {
+
+        Channel channel;
+        try {
+            channel = udpChannels.acquire();
+        } catch (RuntimeException e) {
+            QueryFuture future = new QueryFuture(query);
+            future.setFailure(e);
+            return future;
+        }
+        return query(query, destination, channel);
+    }
+
+    /**
+     * Send a query via UDP on a channel of the pool.
+     */
+    private QueryFuture query(final Message query,
+            final SocketAddress destination, final Channel channel) {
+
+        QueryFuture udp = new QueryFuture(query);
+        try {
+            send(channel, resolve(destination), udp);
+        } catch (RuntimeException e) {
+            udp.setFailure(e);
+        }
+        if (ignoreTruncation) {
+            return udp;
+        }
+        final QueryFuture future = new QueryFuture(query);
+        udp.addListener(new QueryFutureListener() {
+
+            @Override
+            public void operationComplete(final QueryFuture f) {
+                if (f.isSuccess()
+                        && f.getResponse().getHeader().isFlagSet(Flag.TC)
+                        && !future.isDone()) {
+                    LOGGER.debug("Truncated response from {}, retrying "
+                            + "over TCP", destination);
+                    forward(queryTCP(query, destination), future);
+                } else {
+                    forward(f, future);
+                }
+            }
+        });
+        cancelWith(future, udp);
+        return future;
+    }
+
+    /**
+     * Send a batch of queries via UDP, keeping at most a window of them in
+     * flight. The requests are pulled from the iterator as the window allows
+     * and written in bursts, each burst on one channel of the pool. Each
+     * query is sent and matched as for {@link #query(Message, SocketAddress)},
+     * and the listener is notified as each completes, on the thread that
+     * completes it. The queries that take their place are sent from the
+     * application thread pool, as completions may run on an I/O thread that
+     * must not bind a channel. The iterator is only used by one thread at a
+     * time, so it may generate the requests lazily. If it throws, no more
+     * requests are pulled, the exception is kept as the
+     * {@link BatchFuture#getCause() cause} of the batch, and the batch is
+     * done once the queries in flight are complete.
+     *
+     * @param requests
+     *            The queries and their destinations
+     * @param window
+     *            The maximum number of queries in flight
+     * @param listener
+     *            Notified of each completed query, may be null
+     *
+     * @return The progress of the batch
+     */
+    public BatchFuture queryBatch(final Iterator<QueryRequest> requests,
+            final int window, final QueryFutureListener listener) {
+
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        Batch batch = new Batch(requests, window, listener);
+        batch.fill();
+        return batch.future;
+    }
+
+    /**
+     * Submits the queries of a batch as the window allows.
+     */
+    private final class Batch implements QueryFutureListener {
+
+        private final Iterator<QueryRequest> requests;
+        private final int window;
+        private final QueryFutureListener listener;
+        private final BatchFuture future = new BatchFuture();
+        private final Runnable sender = new Runnable() {
+
+            @Override
+            public void run() {
+                sendWindow();
+            }
+        };
+        private int inFlight;
+        private boolean exhausted;
+        private boolean filling;
+        private boolean refill;
+
+        private Batch(final Iterator<QueryRequest> requestsArg,
+                final int windowArg, final QueryFutureListener listenerArg) {
+            this.requests = requestsArg;
+            this.window = windowArg;
+            this.listener = listenerArg;
+        }
+
+        /**
+         * Send as many queries as the window allows. Queries that complete
+         * while sending, e.g. because they failed right away, make the
+         * thread already sending go round again rather than recurse.
+         */
+        private void fill() {
+            synchronized (this) {
+                if (filling) {
+                    refill = true;
+                    return;
+                }
+                filling = true;
+            }
+            sendWindow();
+        }
+
+        /**
+         * Like {@link #fill()}, but sends from the application thread pool.
+         */
+        private void refill() {
+            synchronized (this) {
+                if (filling) {
+                    refill = true;
+                    return;
+                }
+                filling = true;
+            }
+            try {
+                executionHandler.getExecutor().execute(sender);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    filling = false;
+                    abandon(e);
+                }
+            }
+        }
+
+        /**
+         * Pull no more requests.
+         */
+        private void abandon(final RuntimeException e) {
+            future.setFailure(e);
+            exhausted = true;
+            if (inFlight == 0) {
+                future.setDone();
+            }
+        }
+
+        /**
+         * Send as many queries as the window allows, once the batch is
+         * claimed for filling.
+         */
+        private void sendWindow() {
+            List<QueryRequest> burst = new ArrayList<QueryRequest>();
+            while (true) {
+                synchronized (this) {
+                    exhausted |= future.isCancelled();
+                    try {
+                        while (!exhausted && inFlight < window) {
+                            if (requests.hasNext()) {
+                                burst.add(requests.next());
+                                inFlight++;
+                            } else {
+                                exhausted = true;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Exception thrown by batch requests", e);
+                        future.setFailure(e);
+                        exhausted = true;
+                    }
+                    if (burst.isEmpty() && !refill) {
+                        filling = false;
+                        if (exhausted && inFlight == 0) {
+                            future.setDone();
+                        }
+                        return;
+                    }
+                    refill = false;
+                }
+                send(burst);
+                burst.clear();
+            }
+        }
+
+        private void send(final List<QueryRequest> burst) {
+            // no channel sends more queries than it is allowed to
+            int size = udpChannels.getMaxQueries();
+            for (int from = 0; from < burst.size(); from += size) {
+                sendChunk(burst.subList(from,
+                        Math.min(from + size, burst.size())));
+            }
+        }
+
+        private void sendChunk(final List<QueryRequest> chunk) {
+            Channel channel = null;
+            RuntimeException failure = null;
+            try {
+                channel = udpChannels.acquire(chunk.size());
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            for (QueryRequest request : chunk) {
+                QueryFuture query;
+                if (channel == null) {
+                    query = new QueryFuture(request.getQuery());
+                    query.setFailure(failure);
+                } else {
+                    query = query(request.getQuery(),
+                            request.getDestination(), channel);
+                }
+                query.addListener(this);
+            }
+        }
+
+        @Override
+        public void operationComplete(final QueryFuture query) {
+            if (listener != null) {
+                try {
+                    listener.operationComplete(query);
+                } catch (Exception e) {
+                    LOGGER.warn("Exception thrown by listener " + listener, e);
+                }
+            }
+            future.record(query);
+            synchronized (this) {
+                inFlight--;
+            }
+            refill();
+        }
+    }
+
+    /**
+     * Complete a future like another, once that one is complete.
+     */
+    private static void forward(final QueryFuture from,
+            final QueryFuture to) {
+        from.addListener(new QueryFutureListener() {
+
+            @Override
+            public void operationComplete(final QueryFuture f) {
+                if (f.isSuccess()) {
+                    to.setResponse(f.getResponse());
+                } else {
+                    to.setFailure(f.getCause());
+                }
+            }
+        });
+        cancelWith(to, from);
+    }
+
+    /**
+     * Cancel a future if another is cancelled.
+     */
+    private static void cancelWith(final QueryFuture future,
+            final QueryFuture dependent) {
+        future.addListener(new QueryFutureListener() {
+
+            @Override
+            public void operationComplete(final QueryFuture f) {
+                if (f.isCancelled()) {
+                    dependent.cancel(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a query via TCP and obtain a future for the response. The query
+     * is sent on the least busy pooled connection to the destination, and
+     * connections are opened as needed up to the configured maximum; past
+     * that the query waits for a free slot. Connections that close are
+     * reopened for the next queries, failing the queries in flight on them.
+     * The response is matched as for {@link #query(Message, SocketAddress)}.
+     *
+     * @param query
+     *            The DNS query
+     * @param destination
+     *            The server to query
+     *
+     * @return The future response
+     */
+    public QueryFuture queryTCP(final Message query,
+            final SocketAddress destination) {
+
+        final QueryFuture future = new QueryFuture(query);
+        tcpConnections.acquire(destination, new TcpConnectionPool.Lease() {
+
+            @Override
+            public void leased(final Channel channel) {
+                future.addListener(new QueryFutureListener() {
+
+                    @Override
+                    public void operationComplete(final QueryFuture f) {
+                        tcpConnections.release(channel);
+                    }
+                });
+                if (!future.isDone()) {
+                    send(channel, null, future);
+                }
+            }
+
+            @Override
+            public void failed(final Throwable cause) {
+                future.setFailure(cause);
             }
         });
+        return future;
+    }
 
+    /**
+     * The number of pooled TCP connections to a destination.
+     */
+    int getTcpConnectionCount(final SocketAddress destination) {
+        return tcpConnections.getConnectionCount(destination);
+    }
+
+    /**
+     * Register a query and write it.
+     *
+     * @param channel
+     *            The channel to write to
+     * @param destination
+     *            Where to send the query, null for a connected channel
+     * @param future
+     *            The future of the query
+     */
+    private void send(final Channel channel, final SocketAddress destination,
+            final QueryFuture future) {
+
+        SocketAddress remote = destination == null
+                ? channel.getRemoteAddress() : destination;
+        Header header = future.getQuery().getHeader();
+        int attempts = 0;
+        do {
+            if (++attempts > MAX_ID_ATTEMPTS) {
+                future.setFailure(new IllegalStateException(
+                        "No free message ID for a query to " + remote));
+                return;
+            }
+            header.setID(random.nextInt(MAX_ID + 1));
+        } while (!responseCorrelator.register(channel, remote, future,
+                queryTimeoutMillis));
+        channel.write(future.getQuery(), destination).addListener(
+                new ChannelFutureListener() {
+
+            @Override
+            public void operationComplete(final ChannelFuture write) {
+                if (!write.isSuccess()) {
+                    future.setFailure(write.getCause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Resolve a destination, so that it compares equal to the address the
+     * responses come from.
+     */
+    private static SocketAddress resolve(final SocketAddress destination) {
+        if (destination instanceof InetSocketAddress
+                && ((InetSocketAddress) destination).isUnresolved()) {
+            InetSocketAddress address = (InetSocketAddress) destination;
+            InetSocketAddress resolved = new InetSocketAddress(
+                    address.getHostName(), address.getPort());
+            if (resolved.isUnresolved()) {
+                throw new UnresolvedAddressException();
+            }
+            return resolved;
+        }
+        return destination;
     }
 
     public void sendUDP(final Message message,
@@ -373,6 +1130,9 @@ public class DnsClient {
                 LOGGER.warn("Shutting down the client!!!!!");
             }
         }
+        udpChannels.close();
+        tcpConnections.close();
+        timer.stop();
         tcpBootstrap.releaseExternalResources();
         udpBootstrap.releaseExternalResources();
     }
@@ -1,8 +1,17 @@
 package biz.neustar.hopper.nio;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
@@ -11,25 +20,45 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ServerChannel;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.logging.LoggingHandler;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.logging.Slf4JLoggerFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import biz.neustar.hopper.nio.handler.AdmissionController;
+import biz.neustar.hopper.nio.handler.ChannelGroupHandler;
+import biz.neustar.hopper.nio.handler.ChannelOrderedExecutor;
 import biz.neustar.hopper.nio.handler.DNSMessageDecoder;
 import biz.neustar.hopper.nio.handler.DNSMessageEncoder;
+import biz.neustar.hopper.nio.handler.InFlightTracker;
+import biz.neustar.hopper.nio.handler.MetricsHandler;
+import biz.neustar.hopper.nio.handler.PacketCaptureHandler;
+import biz.neustar.hopper.nio.handler.QueryFilter;
+import biz.neustar.hopper.nio.handler.ResponseCache;
+import biz.neustar.hopper.nio.handler.ResponseCacheHandler;
+import biz.neustar.hopper.nio.handler.ResponseRateLimiter;
+import biz.neustar.hopper.nio.handler.ReusePortHandler;
 import biz.neustar.hopper.nio.handler.ServerMessageHandlerTCPInvoker;
 import biz.neustar.hopper.nio.handler.ServerMessageHandlerUDPInvoker;
+import biz.neustar.hopper.nio.handler.TCPConnectionLimiter;
 import biz.neustar.hopper.nio.handler.TCPDecoder;
 import biz.neustar.hopper.nio.handler.TCPEncoder;
+import biz.neustar.hopper.nio.handler.TCPKeepaliveHandler;
+import biz.neustar.hopper.nio.handler.VirtualThreads;
+import biz.neustar.hopper.nio.metrics.ServerMetrics;
 
 /**
  * A Server for the DNS protocol that handles TCP and UPD request. Register a
@@ -52,9 +81,28 @@ import biz.neustar.hopper.nio.handler.TCPEncoder;
  * </pre>
  *
  * <p>
- * The server will have a instance of
- * org.jboss.netty.handler.logging.LoggingHandler as the first handler bound to
- * SLF4j as the implementation.
+ * To serve several addresses or ports, add a listener for each with
+ * {@link Builder#listen(InetSocketAddress)},
+ * {@link Builder#listenUdp(InetSocketAddress)} or
+ * {@link Builder#listenTcp(InetSocketAddress)}; all the listeners share the
+ * handler, thread pools and metrics of the server.
+ * </p>
+ * <p>
+ * When {@link Builder#logging(boolean)} is set, the server will have a
+ * instance of org.jboss.netty.handler.logging.LoggingHandler as the first
+ * handler bound to SLF4j as the implementation. For production debugging a
+ * {@link PacketCaptureHandler} captures a sample of the messages instead.
+ * </p>
+ * <p>
+ * Requests are handed to an application thread pool before the handler is
+ * invoked, or each to its own virtual thread with
+ * {@link Builder#virtualThreads(boolean)}. Handlers implementing
+ * {@link NonBlockingServerMessageHandler}, or any handler when
+ * {@link Builder#inlineHandler(boolean)} is set, are invoked directly on the
+ * I/O worker instead. An
+ * {@link AsyncServerMessageHandler} may be registered instead of a
+ * ServerMessageHandler; it completes each request through a callback, so
+ * slow lookups do not hold an application thread.
  * </p>
  *
  */
@@ -66,6 +114,11 @@ public class DnsServer {
     private static final Logger LOGGER =
             LoggerFactory.getLogger(DnsServer.class);
 
+    /**
+     * How often to check for completion while draining.
+     */
+    private static final long DRAIN_POLL_MILLIS = 10;
+
     /**
      * Server builder.
      */
@@ -73,6 +126,7 @@ public class DnsServer {
         private static final int DNS_PORT = 53;
         private int port = DNS_PORT;
         private ServerMessageHandler serverMessageHandler;
+        private AsyncServerMessageHandler asyncServerMessageHandler;
 
         private static final int DEFAULT_POOLSIZE = 10;
         private int threadPoolSize = DEFAULT_POOLSIZE;
@@ -88,6 +142,24 @@ public class DnsServer {
         private NioServerSocketChannelFactory nioServerSocketChannelFactory = new NioServerSocketChannelFactory();
         private Map<String, Object> tcpOptions = new HashMap<String, Object>();
         private OrderedMemoryAwareThreadPoolExecutor omaThreadPoolExecutor;
+        private Executor executor;
+        private boolean virtualThreads = false;
+        private boolean inlineHandler = false;
+        private int udpChannelCount = 1;
+        private boolean reusePort = false;
+        private boolean tcpPipelining = false;
+        private boolean lazyDecoding = false;
+        private int tcpIdleTimeoutSeconds = 0;
+        private int maxTcpConnections = 0;
+        private int maxTcpConnectionsPerClient = 0;
+        private ResponseRateLimiter responseRateLimiter;
+        private ResponseCache responseCache;
+        private QueryFilter queryFilter;
+        private ServerMetrics metrics;
+        private boolean logging = false;
+        private PacketCaptureHandler packetCapture;
+        private AdmissionController admissionController;
+        private final List<Listener> listeners = new ArrayList<Listener>();
 
         public Builder() {
             udpOptions.put("receiveBufferSize", receiveBufferSize);
@@ -100,13 +172,39 @@ public class DnsServer {
         }
 
         /**
-         * The port the server will listen on. Default is port 53
+         * The port the server will listen on, on all addresses, for UDP and
+         * TCP. Default is port 53. Ignored when listeners are added.
          */
         public Builder port(int portArg) {
             this.port = portArg;
             return this;
         }
 
+        /**
+         * Listen for UDP and TCP requests on an address. With port 0, TCP
+         * listens on the port picked for UDP.
+         */
+        public Builder listen(InetSocketAddress address) {
+            listeners.add(new Listener(address, true, true));
+            return this;
+        }
+
+        /**
+         * Listen for UDP requests on an address.
+         */
+        public Builder listenUdp(InetSocketAddress address) {
+            listeners.add(new Listener(address, true, false));
+            return this;
+        }
+
+        /**
+         * Listen for TCP requests on an address.
+         */
+        public Builder listenTcp(InetSocketAddress address) {
+            listeners.add(new Listener(address, false, true));
+            return this;
+        }
+
         public Builder receiveBufferSize(int receiveBufferSizeArg) {
             this.receiveBufferSize = receiveBufferSizeArg;
             return this;
@@ -126,6 +224,17 @@ public class DnsServer {
             return this;
         }
 
+        /**
+         * The asynchronous message handler to be invoked when a request is
+         * received. Use instead of serverMessageHandler for handlers that
+         * complete requests later, e.g. after a backend lookup.
+         */
+        public Builder asyncServerMessageHandler(
+                final AsyncServerMessageHandler asyncServerMessageHandlerArg) {
+            this.asyncServerMessageHandler = asyncServerMessageHandlerArg;
+            return this;
+        }
+
         /**
          * The application thread pool size. Default is 10.
          */
@@ -178,6 +287,200 @@ public class DnsServer {
             return this;
         }
 
+        /**
+         * Run the application handler on an arbitrary executor instead of
+         * the ordered thread pool, e.g. one that starts a thread per task.
+         * UDP requests are submitted as they arrive; TCP requests keep their
+         * per-connection order unless {@link #tcpPipelining(boolean)} is set.
+         * If this is set, threadPoolSize is ignored.
+         */
+        public Builder executor(Executor executorArg) {
+            this.executor = executorArg;
+            return this;
+        }
+
+        /**
+         * Run the application handler on a new virtual thread for each
+         * request, so that handlers which block can serve many thousands of
+         * requests at once without tuning a pool. Ordering is as for
+         * {@link #executor(Executor)}. Requires a runtime with virtual
+         * threads (Java 21 or later), see {@link VirtualThreads}. Default is
+         * false.
+         */
+        public Builder virtualThreads(boolean virtualThreadsArg) {
+            this.virtualThreads = virtualThreadsArg;
+            return this;
+        }
+
+        /**
+         * Invoke the serverMessageHandler directly on the Netty I/O worker
+         * thread instead of the application thread pool. Only suitable for
+         * handlers that never block. Default is false, unless the handler
+         * implements {@link NonBlockingServerMessageHandler}.
+         */
+        public Builder inlineHandler(boolean inlineHandlerArg) {
+            this.inlineHandler = inlineHandlerArg;
+            return this;
+        }
+
+        /**
+         * The number of UDP sockets bound to the port. When more than one,
+         * every socket is opened with SO_REUSEPORT so the kernel spreads
+         * incoming datagrams across them; each socket is served by its own
+         * worker as long as the datagram channel factory has at least this
+         * many workers. Requires a runtime that exposes SO_REUSEPORT (Java 9
+         * or later). Default is 1.
+         */
+        public Builder udpChannelCount(int udpChannelCountArg) {
+            this.udpChannelCount = udpChannelCountArg;
+            return this;
+        }
+
+        /**
+         * Open the UDP sockets and the TCP listening socket with SO_REUSEPORT,
+         * so that another server can bind the same port while this one is
+         * running. To restart without dropping queries, start the new server
+         * on the port, then {@link DnsServer#drain(long, TimeUnit)} and
+         * {@link DnsServer#stop()} the old one. Requires a runtime that
+         * exposes SO_REUSEPORT (Java 9 or later). Default is false.
+         */
+        public Builder reusePort(boolean reusePortArg) {
+            this.reusePort = reusePortArg;
+            return this;
+        }
+
+        /**
+         * Process the queries received on one TCP connection concurrently and
+         * write each response as soon as it is ready, possibly out of order
+         * (RFC 7766, section 6.2.1.1). Clients match responses to queries by
+         * message ID, so responses must carry the ID of their request. TCP
+         * queries then run on a separate, unordered pool with the size,
+         * memory limits and thread factory of the application thread pool,
+         * or on the executor if one is set. By default the queries of a connection are processed one
+         * at a time, in order. Has no effect when the handler is invoked on
+         * the I/O threads.
+         */
+        public Builder tcpPipelining(boolean tcpPipeliningArg) {
+            this.tcpPipelining = tcpPipeliningArg;
+            return this;
+        }
+
+        /**
+         * Parse only the header of the requests up front, and the records of
+         * a section when the section is first accessed, see
+         * {@link biz.neustar.hopper.message.Message#newLazy(byte[])}. This
+         * suits handlers that look at
+         * little more than the question or the OPT record, such as proxies,
+         * and lets unmodified messages be written back from their original
+         * bytes. Handlers must not modify the records of such requests in
+         * place. By default requests are parsed in full.
+         */
+        public Builder lazyDecoding(boolean lazyDecodingArg) {
+            this.lazyDecoding = lazyDecodingArg;
+            return this;
+        }
+
+        /**
+         * Close TCP connections that have neither read nor written anything
+         * for this many seconds. The timeout is advertised to clients that
+         * send the edns-tcp-keepalive option (RFC 7828). Default is 0, which
+         * keeps connections open until the client closes them.
+         */
+        public Builder tcpIdleTimeoutSeconds(int tcpIdleTimeoutSecondsArg) {
+            this.tcpIdleTimeoutSeconds = tcpIdleTimeoutSecondsArg;
+            return this;
+        }
+
+        /**
+         * The maximum number of concurrent TCP connections. Connections over
+         * the limit are closed as soon as they are accepted. Default is 0, no
+         * limit.
+         */
+        public Builder maxTcpConnections(int maxTcpConnectionsArg) {
+            this.maxTcpConnections = maxTcpConnectionsArg;
+            return this;
+        }
+
+        /**
+         * The maximum number of concurrent TCP connections from a single
+         * client address. Connections over the limit are closed as soon as
+         * they are accepted. Default is 0, no limit.
+         */
+        public Builder maxTcpConnectionsPerClient(
+                int maxTcpConnectionsPerClientArg) {
+            this.maxTcpConnectionsPerClient = maxTcpConnectionsPerClientArg;
+            return this;
+        }
+
+        /**
+         * Rate limit UDP responses. Requests over the limit are dropped or
+         * answered with a truncated response before reaching the handler.
+         * Default is no rate limiting.
+         */
+        public Builder responseRateLimiter(
+                ResponseRateLimiter responseRateLimiterArg) {
+            this.responseRateLimiter = responseRateLimiterArg;
+            return this;
+        }
+
+        /**
+         * Serve UDP responses from a cache of rendered responses, skipping
+         * decoding, the handler and encoding on a hit. Default is no cache.
+         */
+        public Builder responseCache(ResponseCache responseCacheArg) {
+            this.responseCache = responseCacheArg;
+            return this;
+        }
+
+        /**
+         * Reject unwanted or malformed requests from their header and
+         * question, before they are decoded. Applies to UDP and TCP. Default
+         * is no filtering.
+         */
+        public Builder queryFilter(QueryFilter queryFilterArg) {
+            this.queryFilter = queryFilterArg;
+            return this;
+        }
+
+        /**
+         * Record request and response counts, decode and handler latencies
+         * and the application queue depth. Default is no metrics.
+         */
+        public Builder metrics(ServerMetrics metricsArg) {
+            this.metrics = metricsArg;
+            return this;
+        }
+
+        /**
+         * Log every channel event, with hex dumps of the messages, at DEBUG
+         * level. Default is false.
+         */
+        public Builder logging(boolean loggingArg) {
+            this.logging = loggingArg;
+            return this;
+        }
+
+        /**
+         * Capture a sample of the messages received and sent. Default is no
+         * capture.
+         */
+        public Builder packetCapture(PacketCaptureHandler packetCaptureArg) {
+            this.packetCapture = packetCaptureArg;
+            return this;
+        }
+
+        /**
+         * Bound the requests queued for the application thread pool, and
+         * shed the excess by queue depth, queue age and client prefix. Not
+         * used when the handler runs on the I/O threads. Default is an
+         * unbounded queue.
+         */
+        public Builder admissionController(
+                AdmissionController admissionControllerArg) {
+            this.admissionController = admissionControllerArg;
+            return this;
+        }
+
         /**
          * Create and start a new Server instance.
          *
@@ -185,9 +488,37 @@ public class DnsServer {
          */
         public DnsServer build() {
 
-            if (serverMessageHandler == null) {
+            if (serverMessageHandler == null
+                    && asyncServerMessageHandler == null) {
                 throw new IllegalStateException("serverMessageHandler must be set");
             }
+            if (serverMessageHandler != null
+                    && asyncServerMessageHandler != null) {
+                throw new IllegalStateException("only one of serverMessageHandler"
+                        + " and asyncServerMessageHandler may be set");
+            }
+            if (udpChannelCount < 1) {
+                throw new IllegalStateException("udpChannelCount must be positive");
+            }
+            if (udpChannelCount > 1 && !ReusePortHandler.isSupported()) {
+                throw new IllegalStateException(
+                        "udpChannelCount requires SO_REUSEPORT support");
+            }
+            if (reusePort && !ReusePortHandler.isSupported()) {
+                throw new IllegalStateException(
+                        "reusePort requires SO_REUSEPORT support");
+            }
+            if ((omaThreadPoolExecutor != null ? 1 : 0)
+                    + (executor != null ? 1 : 0)
+                    + (virtualThreads ? 1 : 0) > 1) {
+                throw new IllegalStateException("only one of"
+                        + " omaThreadPoolExecutor, executor and"
+                        + " virtualThreads may be set");
+            }
+            if (virtualThreads && !VirtualThreads.isSupported()) {
+                throw new IllegalStateException(
+                        "virtualThreads requires a runtime with virtual threads");
+            }
             return new DnsServer(this);
         }
     }
@@ -201,6 +532,22 @@ public class DnsServer {
         return new Builder();
     }
 
+    /**
+     * An address to listen on, and the transports to listen for.
+     */
+    private static final class Listener {
+        private final InetSocketAddress address;
+        private final boolean udp;
+        private final boolean tcp;
+
+        Listener(final InetSocketAddress address, final boolean udp,
+                final boolean tcp) {
+            this.address = address;
+            this.udp = udp;
+            this.tcp = tcp;
+        }
+    }
+
     /**
      * The TCP Channel factory.
      */
@@ -220,11 +567,62 @@ public class DnsServer {
     private final AtomicReference<InetSocketAddress> boundTo =
             new AtomicReference<InetSocketAddress>();
 
+    /**
+     * The local addresses of the UDP and TCP listeners.
+     */
+    private final List<InetSocketAddress> udpAddresses =
+            new CopyOnWriteArrayList<InetSocketAddress>();
+    private final List<InetSocketAddress> tcpAddresses =
+            new CopyOnWriteArrayList<InetSocketAddress>();
+
+    /**
+     * The timer driving TCP idle detection, null if there is no idle timeout.
+     */
+    private final Timer timer;
+
+    /**
+     * The metrics fed by the server, null if there are none.
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Whether the sockets share their port with other servers.
+     */
+    private final boolean reusePort;
+
+    /**
+     * The application thread pools.
+     */
+    private final List<ThreadPoolExecutor> executors =
+            new ArrayList<ThreadPoolExecutor>();
+
+    /**
+     * The application executors created by the server, shut down with it.
+     */
+    private final List<ExecutorService> ownedExecutors =
+            new ArrayList<ExecutorService>();
+
+    /**
+     * The application executors that are not thread pools.
+     */
+    private final List<TrackedExecutor> trackedExecutors =
+            new ArrayList<TrackedExecutor>();
+
+    /**
+     * Counts the requests being handled or answered.
+     */
+    private final InFlightTracker inFlightTracker = new InFlightTracker();
+
     /**
      * Open channels that need to be shutdown upon server shutdown.
      */
     private final ChannelGroup channelGroup = new DefaultChannelGroup();
 
+    /**
+     * The accepted TCP connections.
+     */
+    private final ChannelGroup tcpConnections = new DefaultChannelGroup();
+
     /**
      * Load the SLF4J binding for org.jboss.netty.handler.logging.LoggingHandler
      */
@@ -240,71 +638,471 @@ public class DnsServer {
      */
     public DnsServer(final Builder builder) {
 
-        LOGGER.debug("Binding to {}", builder.port);
+        // Handlers that do not block are run on the I/O worker, everything
+        // else is handed to the application thread pool
+        final boolean inline = builder.inlineHandler
+                || builder.serverMessageHandler
+                instanceof NonBlockingServerMessageHandler;
+        final ExecutionHandler executionHandler;
+        final ExecutionHandler tcpExecutionHandler;
+        if (inline) {
+            LOGGER.debug("Invoking {} on the I/O threads",
+                    builder.serverMessageHandler);
+            executionHandler = null;
+            tcpExecutionHandler = null;
+        } else if (builder.executor != null || builder.virtualThreads) {
+            Executor delegate = builder.executor;
+            if (builder.virtualThreads) {
+                ExecutorService virtual = VirtualThreads.newExecutor();
+                ownedExecutors.add(virtual);
+                delegate = virtual;
+            }
+            TrackedExecutor executor = new TrackedExecutor(delegate);
+            trackedExecutors.add(executor);
+            // UDP requests are independent, TCP ones are answered in order
+            executionHandler = new ExecutionHandler(executor);
+            tcpExecutionHandler = builder.tcpPipelining ? executionHandler
+                    : new ExecutionHandler(new ChannelOrderedExecutor(executor));
+        } else {
+            OrderedMemoryAwareThreadPoolExecutor pool =
+                    builder.omaThreadPoolExecutor;
+            if (pool == null) {
+                pool = new OrderedMemoryAwareThreadPoolExecutor(
+                        builder.threadPoolSize, 0, 0);
+                ownedExecutors.add(pool);
+            }
+            executionHandler = new ExecutionHandler(pool);
+            if (builder.tcpPipelining) {
+                // Pipelined TCP queries must not be ordered per channel, they
+                // get an unordered pool configured like the ordered one
+                MemoryAwareThreadPoolExecutor tcpPool =
+                        new MemoryAwareThreadPoolExecutor(
+                                pool.getCorePoolSize(),
+                                pool.getMaxChannelMemorySize(),
+                                maxTotalMemorySize(pool),
+                                pool.getKeepAliveTime(TimeUnit.MILLISECONDS),
+                                TimeUnit.MILLISECONDS,
+                                pool.getObjectSizeEstimator(),
+                                pool.getThreadFactory());
+                ownedExecutors.add(tcpPool);
+                tcpExecutionHandler = new ExecutionHandler(tcpPool);
+            } else {
+                tcpExecutionHandler = executionHandler;
+            }
+        }
 
-        final OrderedMemoryAwareThreadPoolExecutor omaThreadPoolExecutor =
-                builder.omaThreadPoolExecutor == null ? new OrderedMemoryAwareThreadPoolExecutor(
-                builder.threadPoolSize, 0, 0) : builder.omaThreadPoolExecutor;
+        if (executionHandler != null) {
+            addExecutor(executionHandler);
+            if (tcpExecutionHandler != executionHandler) {
+                addExecutor(tcpExecutionHandler);
+            }
+        }
+        metrics = builder.metrics;
+        reusePort = builder.reusePort;
+        final AsyncServerMessageHandler asyncServerMessageHandler =
+                builder.asyncServerMessageHandler == null ? null
+                : inFlightTracker.track(builder.asyncServerMessageHandler);
 
-                // Start listening for UDP request
-                udpChannelFactory.set(builder.nioDatagramChannelFactory);
-                ConnectionlessBootstrap udpBootstrap =
-                        new ConnectionlessBootstrap(udpChannelFactory.get());
-                udpBootstrap.setOptions(builder.udpOptions);
-                udpBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+        final ResponseCacheHandler responseCacheHandler =
+                builder.responseCache == null ? null
+                : new ResponseCacheHandler(builder.responseCache,
+                        builder.responseRateLimiter);
 
-                    @Override
-                    public ChannelPipeline getPipeline() {
-                        return Channels.pipeline(
-                                new LoggingHandler(), new DNSMessageDecoder(),
-                                new DNSMessageEncoder(),
-                                new ExecutionHandler(omaThreadPoolExecutor),
-                                new ServerMessageHandlerUDPInvoker(
-                                        builder.serverMessageHandler));
+        // Start listening for UDP request
+        udpChannelFactory.set(builder.nioDatagramChannelFactory);
+        ConnectionlessBootstrap udpBootstrap =
+                new ConnectionlessBootstrap(udpChannelFactory.get());
+        udpBootstrap.setOptions(builder.udpOptions);
+        udpBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+            @Override
+            public ChannelPipeline getPipeline() {
+                ChannelPipeline pipeline = Channels.pipeline();
+                if (builder.udpChannelCount > 1 || builder.reusePort) {
+                    pipeline.addLast("ReusePort", new ReusePortHandler());
+                }
+                if (builder.logging) {
+                    pipeline.addLast("Logger", new LoggingHandler());
+                }
+                if (builder.packetCapture != null) {
+                    pipeline.addLast("PacketCapture", builder.packetCapture);
+                }
+                MetricsHandler metricsHandler = metrics == null ? null
+                        : new MetricsHandler(metrics, false);
+                if (metricsHandler != null) {
+                    pipeline.addLast("Metrics", metricsHandler);
+                }
+                if (builder.queryFilter != null) {
+                    pipeline.addLast("QueryFilter", builder.queryFilter);
+                }
+                if (responseCacheHandler != null) {
+                    pipeline.addLast("ResponseCache", responseCacheHandler);
+                }
+                if (metricsHandler != null) {
+                    pipeline.addLast("DecodeTimer",
+                            metricsHandler.getDecodeTimer());
+                }
+                pipeline.addLast("MessageDecoder",
+                        new DNSMessageDecoder(builder.lazyDecoding));
+                pipeline.addLast("MessageEncoder", new DNSMessageEncoder());
+                if (metricsHandler != null) {
+                    pipeline.addLast("Decoded",
+                            metricsHandler.getDecodedStage());
+                }
+                if (builder.responseRateLimiter != null) {
+                    pipeline.addLast("RateLimiter",
+                            builder.responseRateLimiter);
+                }
+                if (executionHandler != null) {
+                    if (builder.admissionController != null) {
+                        pipeline.addLast("Admission",
+                                builder.admissionController);
                     }
-                });
-                Channel udpChannel = udpBootstrap.bind(
-                        new InetSocketAddress(builder.port));
-                channelGroup.add(udpChannel);
-                this.boundTo.set(
-                        ((InetSocketAddress) udpChannel.getLocalAddress()));
+                    if (metricsHandler != null) {
+                        pipeline.addLast("Enqueue",
+                                metricsHandler.getEnqueueStage());
+                    }
+                    pipeline.addLast("ApplicationThreadPool",
+                            executionHandler);
+                    if (metricsHandler != null) {
+                        pipeline.addLast("Dequeue",
+                                metricsHandler.getDequeueStage());
+                    }
+                    if (builder.admissionController != null) {
+                        pipeline.addLast("AdmissionDequeue",
+                                builder.admissionController
+                                .getDequeueStage());
+                    }
+                }
+                if (metricsHandler != null) {
+                    pipeline.addLast("HandlerTimer",
+                            metricsHandler.getHandlerTimer());
+                }
+                pipeline.addLast("InFlight", inFlightTracker);
+                pipeline.addLast("ServerMessageHandlerInvoker",
+                        asyncServerMessageHandler != null
+                        ? new ServerMessageHandlerUDPInvoker(
+                                asyncServerMessageHandler)
+                        : new ServerMessageHandlerUDPInvoker(
+                                builder.serverMessageHandler));
+                return pipeline;
+            }
+        });
 
-                // Start listening for TCP request on the same port
-                tcpChannelFactory.set(builder.nioServerSocketChannelFactory);
-                ServerBootstrap tcpBootstrap = new ServerBootstrap(
-                        tcpChannelFactory.get());
-                tcpBootstrap.setOptions(builder.tcpOptions);
-                tcpBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+        // Configure the TCP listeners
+        final TCPConnectionLimiter tcpConnectionLimiter =
+                builder.maxTcpConnections > 0
+                || builder.maxTcpConnectionsPerClient > 0
+                ? new TCPConnectionLimiter(builder.maxTcpConnections,
+                        builder.maxTcpConnectionsPerClient) : null;
+        timer = builder.tcpIdleTimeoutSeconds > 0
+                ? new HashedWheelTimer() : null;
+        tcpChannelFactory.set(builder.nioServerSocketChannelFactory);
+        ServerBootstrap tcpBootstrap = new ServerBootstrap(
+                tcpChannelFactory.get());
+        tcpBootstrap.setOptions(builder.tcpOptions);
+        if (builder.reusePort) {
+            tcpBootstrap.setParentHandler(new ReusePortHandler());
+        }
+        final ChannelGroupHandler tcpConnectionGroup =
+                new ChannelGroupHandler(tcpConnections);
+        tcpBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 
-                    @Override
-                    public ChannelPipeline getPipeline() {
-                        return Channels.pipeline(new LoggingHandler(),
-                                new TCPDecoder(), new TCPEncoder(),
-                                new DNSMessageDecoder(),
-                                new DNSMessageEncoder(),
-                                new ExecutionHandler(omaThreadPoolExecutor),
-                                new ServerMessageHandlerTCPInvoker(
-                                                builder.serverMessageHandler));
+            @Override
+            public ChannelPipeline getPipeline() {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("Connections", tcpConnectionGroup);
+                if (tcpConnectionLimiter != null) {
+                    pipeline.addLast("ConnectionLimiter",
+                            tcpConnectionLimiter);
+                }
+                if (builder.logging) {
+                    pipeline.addLast("Logger", new LoggingHandler());
+                }
+                if (timer != null) {
+                    pipeline.addLast("IdleState", new IdleStateHandler(timer,
+                            0, 0, builder.tcpIdleTimeoutSeconds));
+                }
+                pipeline.addLast("TCPDecoder", new TCPDecoder());
+                pipeline.addLast("TCPEncoder", new TCPEncoder());
+                if (builder.packetCapture != null) {
+                    pipeline.addLast("PacketCapture", builder.packetCapture);
+                }
+                MetricsHandler metricsHandler = metrics == null ? null
+                        : new MetricsHandler(metrics, true);
+                if (metricsHandler != null) {
+                    pipeline.addLast("Metrics", metricsHandler);
+                }
+                if (builder.queryFilter != null) {
+                    pipeline.addLast("QueryFilter", builder.queryFilter);
+                }
+                if (metricsHandler != null) {
+                    pipeline.addLast("DecodeTimer",
+                            metricsHandler.getDecodeTimer());
+                }
+                pipeline.addLast("MessageDecoder",
+                        new DNSMessageDecoder(builder.lazyDecoding));
+                pipeline.addLast("MessageEncoder", new DNSMessageEncoder());
+                if (metricsHandler != null) {
+                    pipeline.addLast("Decoded",
+                            metricsHandler.getDecodedStage());
+                }
+                if (timer != null) {
+                    pipeline.addLast("Keepalive", new TCPKeepaliveHandler(
+                            builder.tcpIdleTimeoutSeconds));
+                }
+                if (tcpExecutionHandler != null) {
+                    if (builder.admissionController != null) {
+                        pipeline.addLast("Admission",
+                                builder.admissionController);
                     }
-                });
-                LOGGER.info("Binding to {}", builder.port);
-                Channel tcpChannel = tcpBootstrap.bind(
-                        new InetSocketAddress(this.boundTo.get().getPort()));
+                    if (metricsHandler != null) {
+                        pipeline.addLast("Enqueue",
+                                metricsHandler.getEnqueueStage());
+                    }
+                    pipeline.addLast("ApplicationThreadPool",
+                            tcpExecutionHandler);
+                    if (metricsHandler != null) {
+                        pipeline.addLast("Dequeue",
+                                metricsHandler.getDequeueStage());
+                    }
+                    if (builder.admissionController != null) {
+                        pipeline.addLast("AdmissionDequeue",
+                                builder.admissionController
+                                .getDequeueStage());
+                    }
+                }
+                if (metricsHandler != null) {
+                    pipeline.addLast("HandlerTimer",
+                            metricsHandler.getHandlerTimer());
+                }
+                pipeline.addLast("InFlight", inFlightTracker);
+                pipeline.addLast("ServerMessageHandlerInvoker",
+                        asyncServerMessageHandler != null
+                        ? new ServerMessageHandlerTCPInvoker(
+                                asyncServerMessageHandler)
+                        : new ServerMessageHandlerTCPInvoker(
+                                builder.serverMessageHandler));
+                return pipeline;
+            }
+        });
+
+        List<Listener> listeners = builder.listeners.isEmpty()
+                ? Collections.singletonList(new Listener(
+                        new InetSocketAddress(builder.port), true, true))
+                : builder.listeners;
+        for (Listener listener : listeners) {
+            LOGGER.info("Binding to {}", listener.address);
+            InetSocketAddress address = listener.address;
+            if (listener.udp) {
+                Channel udpChannel = udpBootstrap.bind(address);
+                channelGroup.add(udpChannel);
+                address = (InetSocketAddress) udpChannel.getLocalAddress();
+                udpAddresses.add(address);
+                // Additional sockets share the port picked by the first one
+                for (int i = 1; i < builder.udpChannelCount; i++) {
+                    channelGroup.add(udpBootstrap.bind(address));
+                }
+            }
+            if (listener.tcp) {
+                // on the same port as UDP
+                Channel tcpChannel = tcpBootstrap.bind(address);
                 channelGroup.add(tcpChannel);
+                address = (InetSocketAddress) tcpChannel.getLocalAddress();
+                tcpAddresses.add(address);
+            }
+            this.boundTo.compareAndSet(null, address);
+
+            // let clients know what we are up to
+            LOGGER.info("Bound to {}", address);
+        }
+    }
+
+    /**
+     * The total memory limit of a pool. Netty keeps no limiter when the limit
+     * is 0, and fails to report it.
+     */
+    private static long maxTotalMemorySize(
+            final MemoryAwareThreadPoolExecutor pool) {
+        try {
+            return pool.getMaxTotalMemorySize();
+        } catch (NullPointerException e) {
+            return 0;
+        }
+    }
 
-                // let clients know what we are up to
-                LOGGER.info("Bound to {}", udpChannel.getLocalAddress());
+    /**
+     * Keep track of an application thread pool.
+     */
+    private void addExecutor(final ExecutionHandler handler) {
+        if (handler.getExecutor() instanceof ThreadPoolExecutor) {
+            executors.add((ThreadPoolExecutor) handler.getExecutor());
+        }
     }
 
     /**
      * The address upon which the server is listening.
      *
-     * @return The local address
+     * @return The local address of the first listener
      */
     protected InetSocketAddress getLocalAddress() {
         return boundTo.get();
     }
 
+    /**
+     * The addresses upon which the server listens for UDP requests.
+     *
+     * @return The local addresses, in the order of the listeners
+     */
+    public List<InetSocketAddress> getUdpAddresses() {
+        return Collections.unmodifiableList(udpAddresses);
+    }
+
+    /**
+     * The addresses upon which the server listens for TCP requests.
+     *
+     * @return The local addresses, in the order of the listeners
+     */
+    public List<InetSocketAddress> getTcpAddresses() {
+        return Collections.unmodifiableList(tcpAddresses);
+    }
+
+    /**
+     * Stop taking requests and wait for the ones in progress to be answered,
+     * for at most a deadline. The TCP listening socket is closed, and the TCP
+     * connections stop reading but remain open to send the pending responses.
+     * The UDP sockets also stop reading, and datagrams the kernel queues on
+     * them from then on are lost.
+     * <p>
+     * With {@link Builder#reusePort(boolean)} the kernel keeps handing a
+     * share of the datagrams to the UDP sockets for as long as they are open,
+     * so they keep answering until the deadline instead, and are then closed
+     * between requests so that the server that took over the port gets all
+     * of them. The drain then always takes the whole timeout, even when the
+     * server is idle well before it, so the timeout should be long enough
+     * for the new server to start taking its share of the datagrams. Only
+     * the datagrams that reach a socket as it is being closed are lost, for
+     * their clients to resend. Call {@link #stop()} once drained.
+     *
+     * @param timeout
+     *            How long to wait for the requests in progress. With
+     *            {@link Builder#reusePort(boolean)}, how long the UDP sockets
+     *            keep answering, which is always spent in full
+     * @param unit
+     *            The unit of timeout
+     *
+     * @return true if every request in progress was answered in time
+     *
+     * @throws InterruptedException
+     *             If interrupted while waiting
+     */
+    public boolean drain(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+
+        LOGGER.info("Draining...");
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Channel channel : channelGroup) {
+            if (channel instanceof ServerChannel) {
+                channel.close().awaitUninterruptibly();
+            } else if (!reusePort) {
+                channel.setReadable(false).awaitUninterruptibly();
+            }
+        }
+        for (Channel channel : tcpConnections) {
+            channel.setReadable(false).awaitUninterruptibly();
+        }
+        if (reusePort) {
+            while (System.nanoTime() - deadline < 0) {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+            // wait for a moment with no request in progress, briefly
+            long closeBy = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(DRAIN_POLL_MILLIS);
+            while (!isIdle() && System.nanoTime() - closeBy < 0) {
+                Thread.sleep(1);
+            }
+            // closing queues events of its own for the application pool
+            boolean idle = isIdle();
+            int inFlight = inFlightTracker.getInFlight();
+            for (Channel channel : channelGroup) {
+                channel.close().awaitUninterruptibly();
+            }
+            if (!idle) {
+                LOGGER.warn("Drain timed out with {} requests in flight",
+                        inFlight);
+                return false;
+            }
+        } else {
+            while (!isIdle()) {
+                if (System.nanoTime() - deadline >= 0) {
+                    LOGGER.warn("Drain timed out with {} requests in flight",
+                            inFlightTracker.getInFlight());
+                    return false;
+                }
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+        }
+        LOGGER.info("Drained");
+        return true;
+    }
+
+    /**
+     * Are there no requests queued or in progress?
+     */
+    private boolean isIdle() {
+        for (ThreadPoolExecutor executor : executors) {
+            if (!executor.getQueue().isEmpty()
+                    || executor.getActiveCount() > 0) {
+                return false;
+            }
+        }
+        for (TrackedExecutor executor : trackedExecutors) {
+            if (executor.getPending() > 0) {
+                return false;
+            }
+        }
+        return inFlightTracker.getInFlight() == 0;
+    }
+
+    /**
+     * Counts the tasks submitted to an executor that are not finished, as
+     * arbitrary executors do not expose their queue.
+     */
+    private static final class TrackedExecutor implements Executor {
+
+        private final Executor executor;
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private TrackedExecutor(final Executor executorArg) {
+            this.executor = executorArg;
+        }
+
+        private int getPending() {
+            return pending.get();
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            pending.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                pending.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+
     /**
      * Shutdown the server.
      */
@@ -312,6 +1110,13 @@ public class DnsServer {
 
         LOGGER.info("Stopping...");
         channelGroup.close().awaitUninterruptibly();
+        tcpConnections.close().awaitUninterruptibly();
+        if (timer != null) {
+            timer.stop();
+        }
+        for (ExecutorService executor : ownedExecutors) {
+            executor.shutdown();
+        }
         tcpChannelFactory.get().releaseExternalResources();
         udpChannelFactory.get().releaseExternalResources();
         LOGGER.info("Stopped");
@@ -0,0 +1,16 @@
+package biz.neustar.hopper.nio;
+
+/**
+ * Marker for server message handlers that never block, e.g. handlers that only
+ * perform in-memory lookups. The server invokes such handlers directly on the
+ * Netty I/O worker thread instead of handing each request to the application
+ * thread pool, which saves a thread hop per request.
+ * <p>
+ * Handlers that perform I/O (database, upstream resolvers, ...) must not
+ * implement this interface; a blocked I/O worker stalls every channel it
+ * serves.
+ * </p>
+ */
+public interface NonBlockingServerMessageHandler extends ServerMessageHandler {
+
+}
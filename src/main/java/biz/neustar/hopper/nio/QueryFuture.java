@@ -0,0 +1,215 @@
+package biz.neustar.hopper.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Message;
+
+/**
+ * The result of a query sent with {@link DnsClient#query(Message,
+ * java.net.SocketAddress)}. The future completes with the response, or fails
+ * with a {@link TimeoutException} when the server does not answer in time, or
+ * with the cause of any other failure. Listeners are notified on the thread
+ * that completes the future, or right away if it is already complete.
+ */
+public class QueryFuture implements Future<Message> {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(QueryFuture.class);
+
+    /**
+     * The query.
+     */
+    private final Message query;
+
+    private Message response;
+    private Throwable cause;
+    private boolean done;
+    private List<QueryFutureListener> listeners;
+
+    /**
+     * Create a pending future.
+     *
+     * @param queryArg
+     *            The query the future is for
+     */
+    public QueryFuture(final Message queryArg) {
+        this.query = queryArg;
+    }
+
+    /**
+     * The query the future is for.
+     */
+    public Message getQuery() {
+        return query;
+    }
+
+    /**
+     * Complete the future with a response.
+     *
+     * @param responseArg
+     *            The response
+     *
+     * @return false if the future was already complete
+     */
+    public boolean setResponse(final Message responseArg) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            response = responseArg;
+            done = true;
+            notifyAll();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Fail the future.
+     *
+     * @param causeArg
+     *            Why the query failed
+     *
+     * @return false if the future was already complete
+     */
+    public boolean setFailure(final Throwable causeArg) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cause = causeArg;
+            done = true;
+            notifyAll();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Notify a listener when the future completes.
+     *
+     * @param listener
+     *            The listener
+     */
+    public void addListener(final QueryFutureListener listener) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<QueryFutureListener>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    private void notifyListeners() {
+        List<QueryFutureListener> toNotify;
+        synchronized (this) {
+            toNotify = listeners;
+            listeners = null;
+        }
+        if (toNotify != null) {
+            for (QueryFutureListener listener : toNotify) {
+                notifyListener(listener);
+            }
+        }
+    }
+
+    private void notifyListener(final QueryFutureListener listener) {
+        try {
+            listener.operationComplete(this);
+        } catch (Throwable t) {
+            LOGGER.warn("Exception thrown by listener " + listener, t);
+        }
+    }
+
+    /**
+     * Was the query answered?
+     */
+    public synchronized boolean isSuccess() {
+        return done && cause == null;
+    }
+
+    /**
+     * Why the query failed, null if it has not.
+     */
+    public synchronized Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * The response, null if the query has not been answered.
+     */
+    public synchronized Message getResponse() {
+        return response;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        return setFailure(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cause instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Message get()
+            throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Message get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException,
+            TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private Message result() throws ExecutionException {
+        if (cause instanceof CancellationException) {
+            throw (CancellationException) cause;
+        }
+        if (cause != null) {
+            throw new ExecutionException(cause);
+        }
+        return response;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + query.getHeader().getID()
+                + ")";
+    }
+}
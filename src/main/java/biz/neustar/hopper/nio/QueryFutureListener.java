@@ -0,0 +1,18 @@
+package biz.neustar.hopper.nio;
+
+/**
+ * Notified when a {@link QueryFuture} completes.
+ */
+public interface QueryFutureListener {
+
+    /**
+     * Invoked once the query is answered, has failed or is cancelled.
+     *
+     * @param future The completed future
+     *
+     * @throws Exception
+     *             Logged and otherwise ignored
+     */
+    void operationComplete(final QueryFuture future) throws Exception;
+
+}
@@ -0,0 +1,50 @@
+package biz.neustar.hopper.nio;
+
+import java.net.SocketAddress;
+
+import biz.neustar.hopper.message.Message;
+
+/**
+ * A query and the server to send it to, as submitted in a batch with
+ * {@link DnsClient#queryBatch(java.util.Iterator, int, QueryFutureListener)}.
+ */
+public final class QueryRequest {
+
+    /**
+     * The query.
+     */
+    private final Message query;
+
+    /**
+     * The server to query.
+     */
+    private final SocketAddress destination;
+
+    /**
+     * Pair a query with a server.
+     *
+     * @param queryArg
+     *            The query
+     * @param destinationArg
+     *            The server to query
+     */
+    public QueryRequest(final Message queryArg,
+            final SocketAddress destinationArg) {
+        this.query = queryArg;
+        this.destination = destinationArg;
+    }
+
+    /**
+     * The query.
+     */
+    public Message getQuery() {
+        return query;
+    }
+
+    /**
+     * The server to query.
+     */
+    public SocketAddress getDestination() {
+        return destination;
+    }
+}
@@ -0,0 +1,18 @@
+package biz.neustar.hopper.nio;
+
+import biz.neustar.hopper.message.Message;
+
+/**
+ * Completes a request passed to an {@link AsyncServerMessageHandler}. The
+ * callback may be invoked from any thread, and should be invoked once.
+ */
+public interface ResponseCallback {
+
+    /**
+     * Send the response to the client.
+     *
+     * @param response The response to the client, or null to send nothing
+     */
+    void respond(final Message response);
+
+}
@@ -0,0 +1,364 @@
+package biz.neustar.hopper.nio;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * The TCP connections a client sends its queries on, per destination. A
+ * connection carries up to a maximum number of queries at once. When every
+ * connection to a destination is full, a new one is opened, up to a maximum
+ * number of connections; past that the queries wait for a free slot, for at
+ * most the queue timeout. Connections that closed or failed are dropped and
+ * reopened on demand, and connections that carry no query for the idle
+ * timeout are closed.
+ */
+final class TcpConnectionPool {
+
+    /**
+     * Receives a connection to send a query on.
+     */
+    interface Lease {
+
+        /**
+         * A slot on the connection was obtained. Release it with
+         * {@link TcpConnectionPool#release(Channel)} once the query is done.
+         *
+         * @param channel
+         *            The connected channel
+         */
+        void leased(Channel channel);
+
+        /**
+         * No connection could be obtained.
+         *
+         * @param cause
+         *            Why
+         */
+        void failed(Throwable cause);
+    }
+
+    /**
+     * Opens the connections.
+     */
+    private final ClientBootstrap bootstrap;
+
+    /**
+     * Drives the idle and queue timeouts.
+     */
+    private final Timer timer;
+
+    private final int maxConnections;
+    private final int maxInFlight;
+    private final long idleTimeoutMillis;
+    private final long queueTimeoutMillis;
+
+    /**
+     * The connections of each destination.
+     */
+    private final ConcurrentMap<SocketAddress, Destination> destinations =
+            new ConcurrentHashMap<SocketAddress, Destination>();
+
+    /**
+     * Every connection opened, so they can be closed on shutdown.
+     */
+    private final ChannelGroup allChannels = new DefaultChannelGroup();
+
+    /**
+     * Create a pool.
+     *
+     * @param bootstrapArg
+     *            Opens the connections
+     * @param timerArg
+     *            Drives the idle and queue timeouts
+     * @param maxConnectionsArg
+     *            The maximum number of connections to a destination
+     * @param maxInFlightArg
+     *            The maximum number of queries on a connection
+     * @param idleTimeoutMillisArg
+     *            How long a connection without queries stays open
+     * @param queueTimeoutMillisArg
+     *            How long a query may wait for a free slot
+     */
+    TcpConnectionPool(final ClientBootstrap bootstrapArg,
+            final Timer timerArg, final int maxConnectionsArg,
+            final int maxInFlightArg, final long idleTimeoutMillisArg,
+            final long queueTimeoutMillisArg) {
+        this.bootstrap = bootstrapArg;
+        this.timer = timerArg;
+        this.maxConnections = maxConnectionsArg;
+        this.maxInFlight = maxInFlightArg;
+        this.idleTimeoutMillis = idleTimeoutMillisArg;
+        this.queueTimeoutMillis = queueTimeoutMillisArg;
+    }
+
+    /**
+     * Obtain a slot on a connection to a destination. The lease is notified
+     * once the connection is open, possibly on the calling thread.
+     *
+     * @param address
+     *            The destination
+     * @param lease
+     *            Receives the connection
+     */
+    void acquire(final SocketAddress address, final Lease lease) {
+        Destination destination = destinations.get(address);
+        if (destination == null) {
+            destination = new Destination(address);
+            Destination existing =
+                    destinations.putIfAbsent(address, destination);
+            if (existing != null) {
+                destination = existing;
+            }
+        }
+        destination.acquire(lease);
+    }
+
+    /**
+     * Give back the slot of a query.
+     *
+     * @param channel
+     *            The channel the query was sent on
+     */
+    void release(final Channel channel) {
+        Connection connection = (Connection) channel.getAttachment();
+        if (connection != null) {
+            connection.destination.release(connection);
+        }
+    }
+
+    /**
+     * The number of open or opening connections to a destination.
+     */
+    int getConnectionCount(final SocketAddress address) {
+        Destination destination = destinations.get(address);
+        if (destination == null) {
+            return 0;
+        }
+        synchronized (destination) {
+            return destination.connections.size();
+        }
+    }
+
+    /**
+     * Close every connection.
+     */
+    void close() {
+        allChannels.close().awaitUninterruptibly();
+    }
+
+    /**
+     * A connection and the number of queries on it.
+     */
+    private static final class Connection {
+
+        private final Destination destination;
+        private final ChannelFuture connect;
+        private int inFlight;
+        private long lastUsed;
+
+        private Connection(final Destination destinationArg,
+                final ChannelFuture connectArg) {
+            this.destination = destinationArg;
+            this.connect = connectArg;
+        }
+    }
+
+    /**
+     * A query waiting for a free slot.
+     */
+    private static final class Waiter {
+
+        private final Lease lease;
+        private Timeout timeout;
+
+        private Waiter(final Lease leaseArg) {
+            this.lease = leaseArg;
+        }
+    }
+
+    /**
+     * The connections to one destination. Guarded by itself.
+     */
+    private final class Destination {
+
+        private final SocketAddress address;
+        private final List<Connection> connections =
+                new ArrayList<Connection>();
+        private final Queue<Waiter> waiters = new LinkedList<Waiter>();
+
+        private Destination(final SocketAddress addressArg) {
+            this.address = addressArg;
+        }
+
+        private void acquire(final Lease lease) {
+            Connection connection = null;
+            synchronized (this) {
+                for (Connection candidate : connections) {
+                    if (candidate.inFlight < maxInFlight && (connection == null
+                            || candidate.inFlight < connection.inFlight)) {
+                        connection = candidate;
+                    }
+                }
+                if (connection == null && connections.size() < maxConnections) {
+                    connection = open();
+                }
+                if (connection == null) {
+                    enqueue(lease);
+                    return;
+                }
+                connection.inFlight++;
+            }
+            hand(connection, lease);
+        }
+
+        private void release(final Connection connection) {
+            Waiter waiter = null;
+            synchronized (this) {
+                if (!connections.contains(connection)) {
+                    // closed, its slots are gone
+                    return;
+                }
+                waiter = waiters.poll();
+                if (waiter == null) {
+                    connection.inFlight--;
+                    connection.lastUsed = System.nanoTime();
+                    if (connection.inFlight == 0) {
+                        scheduleIdleCheck(connection);
+                    }
+                }
+            }
+            if (waiter != null) {
+                // the slot goes to the waiter
+                waiter.timeout.cancel();
+                hand(connection, waiter.lease);
+            }
+        }
+
+        /**
+         * Open a connection. Call with the lock held.
+         */
+        private Connection open() {
+            final Connection connection =
+                    new Connection(this, bootstrap.connect(address));
+            Channel channel = connection.connect.getChannel();
+            channel.setAttachment(connection);
+            allChannels.add(channel);
+            connections.add(connection);
+            channel.getCloseFuture().addListener(new ChannelFutureListener() {
+
+                @Override
+                public void operationComplete(final ChannelFuture future) {
+                    closed(connection);
+                }
+            });
+            return connection;
+        }
+
+        /**
+         * Drop a connection, and open new ones for the queries waiting.
+         */
+        private void closed(final Connection connection) {
+            List<Connection> slots = new ArrayList<Connection>();
+            List<Waiter> served = new ArrayList<Waiter>();
+            synchronized (this) {
+                connections.remove(connection);
+                while (!waiters.isEmpty()
+                        && connections.size() < maxConnections) {
+                    Connection replacement = open();
+                    while (replacement.inFlight < maxInFlight
+                            && !waiters.isEmpty()) {
+                        replacement.inFlight++;
+                        slots.add(replacement);
+                        served.add(waiters.poll());
+                    }
+                }
+            }
+            for (int i = 0; i < served.size(); i++) {
+                served.get(i).timeout.cancel();
+                hand(slots.get(i), served.get(i).lease);
+            }
+        }
+
+        /**
+         * Queue a query until a slot is free. Call with the lock held.
+         */
+        private void enqueue(final Lease lease) {
+            final Waiter waiter = new Waiter(lease);
+            waiters.add(waiter);
+            waiter.timeout = timer.newTimeout(new TimerTask() {
+
+                @Override
+                public void run(final Timeout timeout) {
+                    boolean expired;
+                    synchronized (Destination.this) {
+                        expired = waiters.remove(waiter);
+                    }
+                    if (expired) {
+                        lease.failed(new TimeoutException(
+                                "No connection to " + address + " after "
+                                + queueTimeoutMillis + " ms"));
+                    }
+                }
+            }, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Close a connection that stays unused. Call with the lock held.
+         */
+        private void scheduleIdleCheck(final Connection connection) {
+            timer.newTimeout(new TimerTask() {
+
+                @Override
+                public void run(final Timeout timeout) {
+                    boolean idle;
+                    synchronized (Destination.this) {
+                        idle = connection.inFlight == 0
+                                && System.nanoTime() - connection.lastUsed
+                                >= TimeUnit.MILLISECONDS.toNanos(
+                                        idleTimeoutMillis);
+                        if (idle) {
+                            connections.remove(connection);
+                        }
+                    }
+                    if (idle) {
+                        connection.connect.getChannel().close();
+                    }
+                }
+            }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Notify a lease once its connection is open.
+         */
+        private void hand(final Connection connection, final Lease lease) {
+            connection.connect.addListener(new ChannelFutureListener() {
+
+                @Override
+                public void operationComplete(final ChannelFuture future) {
+                    if (future.isSuccess()) {
+                        lease.leased(future.getChannel());
+                    } else {
+                        lease.failed(future.getCause());
+                    }
+                }
+            });
+        }
+    }
+}
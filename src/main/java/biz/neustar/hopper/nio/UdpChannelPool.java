@@ -0,0 +1,148 @@
+package biz.neustar.hopper.nio;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * The long lived UDP channels a client sends its queries from. Each query
+ * goes out on a channel picked at random, and each channel is bound to an
+ * ephemeral port chosen by the kernel. A channel is replaced by one on a new
+ * port after a number of queries, and closed once the queries in flight on it
+ * have had time to be answered, so that the source port of a query stays
+ * hard to guess.
+ */
+final class UdpChannelPool {
+
+    /**
+     * Binds the channels.
+     */
+    private final ConnectionlessBootstrap bootstrap;
+
+    /**
+     * Closes the replaced channels.
+     */
+    private final Timer timer;
+
+    /**
+     * How long replaced channels stay open.
+     */
+    private final long retireDelayMillis;
+
+    /**
+     * How many queries a channel sends before it is replaced.
+     */
+    private final int maxQueries;
+
+    /**
+     * Picks the channels.
+     */
+    private final Random random;
+
+    /**
+     * Every channel bound, so they can be closed on shutdown.
+     */
+    private final ChannelGroup allChannels = new DefaultChannelGroup();
+
+    private final Channel[] channels;
+    private final int[] queries;
+
+    /**
+     * Create a pool. The channels are bound on first use.
+     *
+     * @param bootstrapArg
+     *            Binds the channels
+     * @param timerArg
+     *            Closes the replaced channels
+     * @param randomArg
+     *            Picks the channels
+     * @param size
+     *            The number of channels
+     * @param maxQueriesArg
+     *            How many queries a channel sends before it is replaced
+     * @param retireDelayMillisArg
+     *            How long replaced channels stay open
+     */
+    UdpChannelPool(final ConnectionlessBootstrap bootstrapArg,
+            final Timer timerArg, final Random randomArg, final int size,
+            final int maxQueriesArg, final long retireDelayMillisArg) {
+        this.bootstrap = bootstrapArg;
+        this.timer = timerArg;
+        this.random = randomArg;
+        this.maxQueries = maxQueriesArg;
+        this.retireDelayMillis = retireDelayMillisArg;
+        this.channels = new Channel[size];
+        this.queries = new int[size];
+    }
+
+    /**
+     * Obtain a channel to send a query on.
+     *
+     * @return An open channel
+     */
+    Channel acquire() {
+        return acquire(1);
+    }
+
+    /**
+     * Obtain a channel to send a burst of queries on.
+     *
+     * @param count
+     *            The number of queries, at most {@link #getMaxQueries()}
+     *
+     * @return An open channel
+     */
+    Channel acquire(final int count) {
+        int slot = random.nextInt(channels.length);
+        synchronized (this) {
+            Channel channel = channels[slot];
+            if (channel == null || !channel.isOpen()
+                    || queries[slot] + count > maxQueries) {
+                if (channel != null) {
+                    retire(channel);
+                }
+                channel = bootstrap.bind(new InetSocketAddress(0));
+                allChannels.add(channel);
+                channels[slot] = channel;
+                queries[slot] = 0;
+            }
+            queries[slot] += count;
+            return channel;
+        }
+    }
+
+    /**
+     * @return How many queries a channel sends before it is replaced
+     */
+    int getMaxQueries() {
+        return maxQueries;
+    }
+
+    /**
+     * Close a channel once its queries have expired.
+     */
+    private void retire(final Channel channel) {
+        timer.newTimeout(new TimerTask() {
+
+            @Override
+            public void run(final Timeout timeout) {
+                channel.close();
+            }
+        }, retireDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close every channel.
+     */
+    void close() {
+        allChannels.close().awaitUninterruptibly();
+    }
+}
@@ -0,0 +1,337 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Rcode;
+
+/**
+ * Bounds the work queued for the application thread pool and sheds the
+ * excess. A request is shed when it arrives if
+ * <ul>
+ * <li>the queue already holds {@link Builder#maxQueueDepth(int)} requests,
+ * </li>
+ * <li>its client's network prefix already has
+ * {@link Builder#maxQueuedPerClient(int)} requests queued, so that one noisy
+ * client cannot take the whole queue, or</li>
+ * <li>the last request taken off the queue had waited longer than
+ * {@link Builder#maxQueueAge(long, TimeUnit)} and the queue is not empty;
+ * </li>
+ * </ul>
+ * and when it leaves the queue if it has itself waited too long. Shed
+ * requests are answered according to the {@link Action}.
+ * <p>
+ * Place the stage right before the application thread pool, and its
+ * {@link #getDequeueStage() dequeue stage} right after. One instance is
+ * shared by all the pipelines feeding a pool; obtain one from
+ * {@link #builder()}.
+ * </p>
+ */
+@Sharable
+public class AdmissionController extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(AdmissionController.class);
+
+    /**
+     * What to do with a shed request.
+     */
+    public enum Action {
+        /** Send nothing; the client retries or tries another server. */
+        DROP,
+        /** Answer REFUSED. */
+        REFUSED,
+        /** Answer SERVFAIL. */
+        SERVFAIL
+    }
+
+    /**
+     * Admission controller builder.
+     */
+    public static class Builder {
+        private static final int DEFAULT_MAX_QUEUE_DEPTH = 1000;
+        private static final int DEFAULT_MAX_QUEUED_PER_CLIENT = 100;
+        private static final long DEFAULT_MAX_QUEUE_AGE_MILLIS = 500;
+        private static final int DEFAULT_IPV4_PREFIX = 24;
+        private static final int DEFAULT_IPV6_PREFIX = 56;
+
+        private int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+        private int maxQueuedPerClient = DEFAULT_MAX_QUEUED_PER_CLIENT;
+        private long maxQueueAgeNanos =
+                TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_QUEUE_AGE_MILLIS);
+        private Action action = Action.DROP;
+        private int ipv4PrefixLength = DEFAULT_IPV4_PREFIX;
+        private int ipv6PrefixLength = DEFAULT_IPV6_PREFIX;
+
+        /**
+         * The most requests queued. Default is 1000.
+         */
+        public Builder maxQueueDepth(int maxQueueDepthArg) {
+            this.maxQueueDepth = maxQueueDepthArg;
+            return this;
+        }
+
+        /**
+         * The most requests queued from one client prefix. Default is 100.
+         */
+        public Builder maxQueuedPerClient(int maxQueuedPerClientArg) {
+            this.maxQueuedPerClient = maxQueuedPerClientArg;
+            return this;
+        }
+
+        /**
+         * The longest a request may wait in the queue. Default is 500ms.
+         */
+        public Builder maxQueueAge(long maxQueueAge, TimeUnit unit) {
+            this.maxQueueAgeNanos = unit.toNanos(maxQueueAge);
+            return this;
+        }
+
+        /**
+         * What to do with shed requests. Default is to drop them.
+         */
+        public Builder action(Action actionArg) {
+            this.action = actionArg;
+            return this;
+        }
+
+        /**
+         * The prefix length grouping IPv4 clients. Default is 24.
+         */
+        public Builder ipv4PrefixLength(int ipv4PrefixLengthArg) {
+            this.ipv4PrefixLength = ipv4PrefixLengthArg;
+            return this;
+        }
+
+        /**
+         * The prefix length grouping IPv6 clients. Default is 56.
+         */
+        public Builder ipv6PrefixLength(int ipv6PrefixLengthArg) {
+            this.ipv6PrefixLength = ipv6PrefixLengthArg;
+            return this;
+        }
+
+        /**
+         * Create a new admission controller.
+         *
+         * @return An AdmissionController
+         */
+        public AdmissionController build() {
+            if (maxQueueDepth < 1 || maxQueuedPerClient < 1
+                    || maxQueueAgeNanos <= 0 || action == null) {
+                throw new IllegalStateException("invalid admission settings");
+            }
+            return new AdmissionController(this);
+        }
+    }
+
+    /**
+     * Obtain a new builder instance.
+     *
+     * @return A Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A request on its way through the queue.
+     */
+    private static final class Admitted extends UpstreamMessageEvent {
+        private final long admittedAt;
+        private final int slot;
+
+        Admitted(final Channel channel, final Object message,
+                final SocketAddress remoteAddress, final long admittedAt,
+                final int slot) {
+            super(channel, message, remoteAddress);
+            this.admittedAt = admittedAt;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * The number of per client counters. Clients whose prefixes share a
+     * counter share their quota.
+     */
+    private static final int CLIENT_SLOTS = 4096;
+
+    private final int maxQueueDepth;
+    private final int maxQueuedPerClient;
+    private final long maxQueueAgeNanos;
+    private final Action action;
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicIntegerArray queuedPerClient =
+            new AtomicIntegerArray(CLIENT_SLOTS);
+
+    /**
+     * How long the last request taken off the queue waited.
+     */
+    private volatile long lastQueueAgeNanos;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    private final ChannelHandler dequeueStage = new DequeueStage();
+
+    private AdmissionController(final Builder builder) {
+        this.maxQueueDepth = builder.maxQueueDepth;
+        this.maxQueuedPerClient = builder.maxQueuedPerClient;
+        this.maxQueueAgeNanos = builder.maxQueueAgeNanos;
+        this.action = builder.action;
+        this.ipv4PrefixLength = builder.ipv4PrefixLength;
+        this.ipv6PrefixLength = builder.ipv6PrefixLength;
+    }
+
+    /**
+     * The stage to place right after the application thread pool.
+     */
+    public ChannelHandler getDequeueStage() {
+        return dequeueStage;
+    }
+
+    /**
+     * The number of requests queued.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * The number of requests admitted to the queue.
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * The number of requests shed, on arrival or after waiting too long.
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        if (!(e.getMessage() instanceof Message)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        int slot = slot(e.getRemoteAddress());
+        // a slow queue sheds until it has drained
+        if ((lastQueueAgeNanos > maxQueueAgeNanos && queued.get() > 0)
+                || !acquire(queued, maxQueueDepth)) {
+            shed(ctx, e, "queue full");
+            return;
+        }
+        if (queuedPerClient.incrementAndGet(slot) > maxQueuedPerClient) {
+            queuedPerClient.decrementAndGet(slot);
+            queued.decrementAndGet();
+            shed(ctx, e, "client over quota");
+            return;
+        }
+        admitted.incrementAndGet();
+        ctx.sendUpstream(new Admitted(e.getChannel(), e.getMessage(),
+                e.getRemoteAddress(), System.nanoTime(), slot));
+    }
+
+    /**
+     * Takes requests off the queue, shedding those that waited too long.
+     */
+    @Sharable
+    private final class DequeueStage extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void messageReceived(
+                final ChannelHandlerContext ctx,
+                final MessageEvent e) throws Exception {
+
+            if (!(e instanceof Admitted)) {
+                super.messageReceived(ctx, e);
+                return;
+            }
+            Admitted request = (Admitted) e;
+            queued.decrementAndGet();
+            queuedPerClient.decrementAndGet(request.slot);
+            long age = System.nanoTime() - request.admittedAt;
+            lastQueueAgeNanos = age;
+            if (age > maxQueueAgeNanos) {
+                shed(ctx, e, "waited too long");
+                return;
+            }
+            super.messageReceived(ctx, e);
+        }
+    }
+
+    private void shed(final ChannelHandlerContext ctx, final MessageEvent e,
+            final String reason) {
+        shed.incrementAndGet();
+        LOGGER.debug("Shedding request from {}: {}", e.getRemoteAddress(),
+                reason);
+        if (action != Action.DROP) {
+            ctx.getChannel().write(Responses.reply((Message) e.getMessage(),
+                    action == Action.REFUSED ? Rcode.REFUSED : Rcode.SERVFAIL),
+                    e.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Increment a counter unless it has reached a limit.
+     */
+    private static boolean acquire(final AtomicInteger counter,
+            final int limit) {
+        while (true) {
+            int current = counter.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The counter of a client's network prefix.
+     */
+    private int slot(final SocketAddress remote) {
+        int hash = 0;
+        if (remote instanceof InetSocketAddress) {
+            InetAddress address = ((InetSocketAddress) remote).getAddress();
+            byte[] bytes = address.getAddress();
+            int prefix = bytes.length == 4 ? ipv4PrefixLength
+                    : ipv6PrefixLength;
+            for (int i = 0; i < bytes.length && prefix > 0; i++, prefix -= 8) {
+                int b = bytes[i] & (prefix >= 8 ? 0xFF : (0xFF00 >> prefix));
+                hash = hash * 31 + b;
+            }
+        }
+        hash ^= hash >>> 16;
+        return hash & (CLIENT_SLOTS - 1);
+    }
+}
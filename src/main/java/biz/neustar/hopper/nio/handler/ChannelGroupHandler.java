@@ -0,0 +1,35 @@
+package biz.neustar.hopper.nio.handler;
+
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+
+/**
+ * Adds every channel of the pipelines it is in to a {@link ChannelGroup} when
+ * the channel opens. The group forgets channels when they close.
+ */
+@Sharable
+public class ChannelGroupHandler extends SimpleChannelUpstreamHandler {
+
+    private final ChannelGroup channelGroup;
+
+    /**
+     * Create a handler filling a group.
+     *
+     * @param channelGroupArg
+     *            The group
+     */
+    public ChannelGroupHandler(final ChannelGroup channelGroupArg) {
+        this.channelGroup = channelGroupArg;
+    }
+
+    @Override
+    public void channelOpen(
+            final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+        channelGroup.add(e.getChannel());
+        super.channelOpen(ctx, e);
+    }
+}
@@ -0,0 +1,140 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+
+/**
+ * Runs the events of a channel one at a time, in the order they were
+ * submitted, on an arbitrary executor. Events of different channels run
+ * concurrently. This gives the ordering of an
+ * {@link org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor}
+ * to executors that are not thread pools, such as one that starts a virtual
+ * thread per task. Tasks that are not channel events are run unordered.
+ */
+public class ChannelOrderedExecutor implements Executor {
+
+    /**
+     * The executor the tasks run on.
+     */
+    private final Executor executor;
+
+    /**
+     * The queue of each channel with pending events.
+     */
+    private final ConcurrentMap<Channel, ChildExecutor> children =
+            new ConcurrentHashMap<Channel, ChildExecutor>();
+
+    /**
+     * Order the tasks run on an executor.
+     *
+     * @param executorArg
+     *            The executor the tasks run on
+     */
+    public ChannelOrderedExecutor(final Executor executorArg) {
+        this.executor = executorArg;
+    }
+
+    /**
+     * The executor the tasks run on.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (task instanceof ChannelEventRunnable) {
+            getChild(((ChannelEventRunnable) task).getEvent().getChannel())
+                    .execute(task);
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * The queue of a channel, created on first use.
+     */
+    private ChildExecutor getChild(final Channel channel) {
+        ChildExecutor child = children.get(channel);
+        if (child == null) {
+            child = new ChildExecutor(channel);
+            ChildExecutor existing = children.putIfAbsent(channel, child);
+            if (existing != null) {
+                child = existing;
+            }
+        }
+        return child;
+    }
+
+    /**
+     * Is this the last event of a channel?
+     */
+    private static boolean isClosed(final ChannelEvent event) {
+        if (event instanceof ChannelStateEvent) {
+            ChannelStateEvent state = (ChannelStateEvent) event;
+            return state.getState() == ChannelState.OPEN
+                    && !Boolean.TRUE.equals(state.getValue());
+        }
+        return false;
+    }
+
+    /**
+     * Runs the events of one channel in order, one task on the executor at a
+     * time.
+     */
+    private final class ChildExecutor implements Executor, Runnable {
+
+        private final Channel channel;
+        private final Queue<Runnable> tasks =
+                new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        private ChildExecutor(final Channel channelArg) {
+            this.channel = channelArg;
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    running.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                    if (isClosed(((ChannelEventRunnable) task).getEvent())) {
+                        children.remove(channel, this);
+                    }
+                }
+            } finally {
+                running.set(false);
+                // A task may have been queued after the last poll
+                schedule();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package biz.neustar.hopper.nio.handler;
 
+import java.nio.ByteBuffer;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -10,7 +12,11 @@ import org.slf4j.LoggerFactory;
 import biz.neustar.hopper.message.Message;
 
 /**
- * Decodes a DNS message from wire format to Java Objects.
+ * Decodes a DNS message from wire format to Java Objects. The message is
+ * parsed in place from the readable region of the buffer, so heap, direct and
+ * pooled buffers are all handled without an intermediate copy. A lazy decoder
+ * instead copies the message and leaves its records to be parsed when they
+ * are first accessed, see {@link Message#newLazy(byte[])}.
  */
 public class DNSMessageDecoder extends OneToOneDecoder {
 
@@ -20,6 +26,28 @@ public class DNSMessageDecoder extends OneToOneDecoder {
     private static final Logger LOGGER =
             LoggerFactory.getLogger(DNSMessageDecoder.class);
 
+    /**
+     * Are the records parsed on first access?
+     */
+    private final boolean lazy;
+
+    /**
+     * Create a decoder that parses the whole message.
+     */
+    public DNSMessageDecoder() {
+        this(false);
+    }
+
+    /**
+     * Create a decoder.
+     *
+     * @param lazyArg
+     *            Parse the records of the messages on first access
+     */
+    public DNSMessageDecoder(final boolean lazyArg) {
+        this.lazy = lazyArg;
+    }
+
     @Override
     protected Object decode(
             final ChannelHandlerContext context,
@@ -27,7 +55,8 @@ public class DNSMessageDecoder extends OneToOneDecoder {
 
         LOGGER.debug("decode {}", channel.getId());
         ChannelBuffer buffer = (ChannelBuffer) message;
-        return new Message(buffer.array());
+        ByteBuffer bytes = buffer.toByteBuffer(buffer.readerIndex(),
+                buffer.readableBytes());
+        return lazy ? Message.newLazy(bytes) : new Message(bytes);
     }
 }
-
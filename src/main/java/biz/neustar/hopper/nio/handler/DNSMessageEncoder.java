@@ -1,6 +1,9 @@
 package biz.neustar.hopper.nio.handler;
 
-import org.jboss.netty.buffer.ChannelBuffers;
+import java.nio.BufferOverflowException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
@@ -10,7 +13,11 @@ import org.slf4j.LoggerFactory;
 import biz.neustar.hopper.message.Message;
 
 /**
- * Encodes a Java Objects to wire format.
+ * Encodes a Java Objects to wire format. The message is rendered straight into
+ * a buffer obtained from the channel's {@link ChannelBufferFactory}, so setting
+ * the "bufferFactory" channel option (e.g. to a pooling
+ * {@link org.jboss.netty.buffer.DirectChannelBufferFactory}) controls where
+ * responses are rendered.
  */
 public class DNSMessageEncoder extends OneToOneEncoder {
 
@@ -20,6 +27,12 @@ public class DNSMessageEncoder extends OneToOneEncoder {
     private static final Logger LOGGER =
             LoggerFactory.getLogger(DNSMessageEncoder.class);
 
+    /**
+     * The size of the output buffers. Most messages fit; a larger one is
+     * rendered again into a buffer of twice the size, until it fits.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
     @Override
     protected Object encode(
             final ChannelHandlerContext context,
@@ -32,8 +45,22 @@ public class DNSMessageEncoder extends OneToOneEncoder {
         }
 
         LOGGER.debug("Encoding {}", channel.getId());
-        byte[] wireMessage = ((Message) message).toWire();
-        return ChannelBuffers.copiedBuffer(wireMessage);
+        ChannelBufferFactory factory =
+                channel.getConfig().getBufferFactory();
+        int size = INITIAL_BUFFER_SIZE;
+        while (true) {
+            ChannelBuffer buffer = factory.getBuffer(size);
+            try {
+                int length = ((Message) message).toWire(
+                        buffer.toByteBuffer(0, size));
+                buffer.writerIndex(length);
+                return buffer;
+            } catch (BufferOverflowException e) {
+                if (size >= Message.MAXLENGTH) {
+                    throw e;
+                }
+                size = Math.min(size * 2, Message.MAXLENGTH);
+            }
+        }
     }
 }
-
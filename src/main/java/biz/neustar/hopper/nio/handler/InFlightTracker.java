@@ -0,0 +1,120 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.AsyncServerMessageHandler;
+import biz.neustar.hopper.nio.ResponseCallback;
+
+/**
+ * Counts the requests a server is working on, so that it can wait for them
+ * to complete before shutting down. A request is in flight while the server
+ * message handler runs, until an asynchronous handler responds through its
+ * callback (see {@link #track(AsyncServerMessageHandler)}), and while its
+ * response is being written. Place the stage right before the server message
+ * handler invoker; requests still queued for the application thread pool are
+ * not counted.
+ */
+@Sharable
+public class InFlightTracker extends SimpleChannelHandler {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final ChannelFutureListener writeComplete =
+            new ChannelFutureListener() {
+
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            inFlight.decrementAndGet();
+        }
+    };
+
+    /**
+     * The number of requests in flight.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Wrap an asynchronous handler so that requests are in flight until it
+     * responds.
+     *
+     * @param handler
+     *            The handler
+     *
+     * @return The tracked handler
+     */
+    public AsyncServerMessageHandler track(
+            final AsyncServerMessageHandler handler) {
+        return new AsyncServerMessageHandler() {
+
+            @Override
+            public void handleRequest(final Message request,
+                    final ResponseCallback callback) {
+                final AtomicBoolean responded = new AtomicBoolean();
+                inFlight.incrementAndGet();
+                try {
+                    handler.handleRequest(request, new ResponseCallback() {
+
+                        @Override
+                        public void respond(final Message response) {
+                            try {
+                                callback.respond(response);
+                            } finally {
+                                if (responded.compareAndSet(false, true)) {
+                                    inFlight.decrementAndGet();
+                                }
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    if (responded.compareAndSet(false, true)) {
+                        inFlight.decrementAndGet();
+                    }
+                    throw e;
+                }
+            }
+
+            @Override
+            public void handleException(final Throwable throwable) {
+                handler.handleException(throwable);
+            }
+        };
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (!(e.getMessage() instanceof Message)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        inFlight.incrementAndGet();
+        try {
+            super.messageReceived(ctx, e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void writeRequested(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof Message) {
+            inFlight.incrementAndGet();
+            e.getFuture().addListener(writeComplete);
+        }
+        super.writeRequested(ctx, e);
+    }
+}
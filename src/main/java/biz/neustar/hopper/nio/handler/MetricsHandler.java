@@ -0,0 +1,229 @@
+package biz.neustar.hopper.nio.handler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.metrics.ServerMetrics;
+
+/**
+ * Feeds a {@link ServerMetrics} from a server pipeline. The handler itself
+ * counts requests and responses from their wire format, so it goes ahead of
+ * every stage that may answer or drop a request before it is decoded, such
+ * as the query filter and the response cache. It has companion stages:
+ * <ul>
+ * <li>the decode timer, placed right before the message decoder, which
+ * starts the clock on the decoding of a request, and the decoded stage,
+ * placed right after the message encoder, which stops it;</li>
+ * <li>the handler timer, placed right before the server message handler
+ * invoker, which times the handler. For an asynchronous handler this is the
+ * time taken to dispatch the request;</li>
+ * <li>the enqueue and dequeue stages, placed right before and right after
+ * the application thread pool, which count the requests waiting for an
+ * application thread.</li>
+ * </ul>
+ * A handler belongs to a single pipeline.
+ */
+public class MetricsHandler extends SimpleChannelHandler {
+
+    private final ServerMetrics metrics;
+
+    private final boolean tcp;
+
+    /**
+     * When the decoding of the current request started, 0 if not timed.
+     * Only accessed by the I/O thread of the channel.
+     */
+    private long decodeStart;
+
+    private final ChannelHandler decodeTimer =
+            new SimpleChannelUpstreamHandler() {
+
+        @Override
+        public void messageReceived(
+                final ChannelHandlerContext ctx,
+                final MessageEvent e) throws Exception {
+            decodeStart = System.nanoTime();
+            super.messageReceived(ctx, e);
+        }
+    };
+
+    private final ChannelHandler decodedStage =
+            new SimpleChannelUpstreamHandler() {
+
+        @Override
+        public void messageReceived(
+                final ChannelHandlerContext ctx,
+                final MessageEvent e) throws Exception {
+            if (e.getMessage() instanceof Message && decodeStart != 0) {
+                metrics.recordDecode(System.nanoTime() - decodeStart);
+                decodeStart = 0;
+            }
+            super.messageReceived(ctx, e);
+        }
+    };
+
+    private final ChannelHandler handlerTimer = new HandlerTimer();
+
+    private final ChannelHandler enqueueStage = new EnqueueStage();
+
+    private final ChannelHandler dequeueStage = new DequeueStage();
+
+    /**
+     * The handler timer, stateless so that it may run on any thread.
+     */
+    @Sharable
+    private final class HandlerTimer extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void messageReceived(
+                final ChannelHandlerContext ctx,
+                final MessageEvent e) throws Exception {
+            if (!(e.getMessage() instanceof Message)) {
+                super.messageReceived(ctx, e);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                super.messageReceived(ctx, e);
+            } finally {
+                metrics.recordHandler(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Counts a request handed to the application thread pool, stateless so
+     * that it may be shared.
+     */
+    @Sharable
+    private final class EnqueueStage extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void messageReceived(
+                final ChannelHandlerContext ctx,
+                final MessageEvent e) throws Exception {
+            if (!(e.getMessage() instanceof Message)) {
+                super.messageReceived(ctx, e);
+                return;
+            }
+            metrics.recordEnqueue();
+            try {
+                super.messageReceived(ctx, e);
+            } catch (RuntimeException ex) {
+                // the pool did not take it
+                metrics.recordDequeue();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Counts a request taken off the application thread pool queue.
+     */
+    @Sharable
+    private final class DequeueStage extends SimpleChannelUpstreamHandler {
+
+        @Override
+        public void messageReceived(
+                final ChannelHandlerContext ctx,
+                final MessageEvent e) throws Exception {
+            if (e.getMessage() instanceof Message) {
+                metrics.recordDequeue();
+            }
+            super.messageReceived(ctx, e);
+        }
+    }
+
+    /**
+     * Create a handler for a pipeline.
+     *
+     * @param metricsArg
+     *            The metrics to feed
+     * @param tcpArg
+     *            Whether the pipeline is for TCP
+     */
+    public MetricsHandler(final ServerMetrics metricsArg,
+            final boolean tcpArg) {
+        this.metrics = metricsArg;
+        this.tcp = tcpArg;
+    }
+
+    /**
+     * The stage to place right before the message decoder.
+     */
+    public ChannelHandler getDecodeTimer() {
+        return decodeTimer;
+    }
+
+    /**
+     * The stage to place right after the message encoder.
+     */
+    public ChannelHandler getDecodedStage() {
+        return decodedStage;
+    }
+
+    /**
+     * The stage to place right before the server message handler invoker.
+     */
+    public ChannelHandler getHandlerTimer() {
+        return handlerTimer;
+    }
+
+    /**
+     * The stage to place right before the application thread pool.
+     */
+    public ChannelHandler getEnqueueStage() {
+        return enqueueStage;
+    }
+
+    /**
+     * The stage to place right after the application thread pool.
+     */
+    public ChannelHandler getDequeueStage() {
+        return dequeueStage;
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            ChannelBuffer request = (ChannelBuffer) e.getMessage();
+            int offset = request.readerIndex();
+            if (request.readableBytes() >= QueryFilter.HEADER_LENGTH
+                    && (request.getUnsignedByte(offset + 2) & 0x80) == 0) {
+                int nameLength = QueryFilter.questionNameLength(request);
+                metrics.recordRequest(
+                        (request.getUnsignedByte(offset + 2) >> 3) & 0xF,
+                        nameLength < 0 ? -1 : request.getUnsignedShort(
+                                offset + QueryFilter.HEADER_LENGTH
+                                + nameLength),
+                        tcp);
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer) {
+            ChannelBuffer response = (ChannelBuffer) e.getMessage();
+            int offset = response.readerIndex();
+            if (response.readableBytes() >= QueryFilter.HEADER_LENGTH) {
+                metrics.recordResponse(
+                        response.getUnsignedByte(offset + 3) & 0xF,
+                        (response.getUnsignedByte(offset + 2) & 0x02) != 0,
+                        tcp);
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+}
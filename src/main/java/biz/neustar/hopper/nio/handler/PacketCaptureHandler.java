@@ -0,0 +1,174 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures a sample of the DNS messages received and sent, in wire format.
+ * One message in every {@link Builder#sampleRate(int)} is copied, in each
+ * direction, and handed to a {@link Sink}; all others pass through at the cost
+ * of an atomic increment. The default sink logs a hex dump of the message.
+ * <p>
+ * Place the stage where it sees whole messages: after the TCP framing
+ * decoder and encoder, or first in a UDP pipeline.
+ * </p>
+ */
+@Sharable
+public class PacketCaptureHandler extends SimpleChannelHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(PacketCaptureHandler.class);
+
+    /**
+     * The receiver of captured messages.
+     */
+    public interface Sink {
+
+        /**
+         * Called with each captured message, on the I/O thread.
+         *
+         * @param received
+         *            true if the message was received, false if sent
+         * @param remote
+         *            The address of the peer
+         * @param packet
+         *            A copy of the message in wire format, possibly cut to
+         *            {@link Builder#maxBytes(int)}
+         */
+        void capture(boolean received, SocketAddress remote, byte[] packet);
+    }
+
+    /**
+     * A sink logging captured messages at INFO level.
+     */
+    private static final Sink LOGGING_SINK = new Sink() {
+
+        @Override
+        public void capture(final boolean received,
+                final SocketAddress remote, final byte[] packet) {
+            LOGGER.info("{} {} {} bytes: {}", new Object[] {
+                    received ? "From" : "To", remote, packet.length,
+                    ChannelBuffers.hexDump(ChannelBuffers.wrappedBuffer(packet))
+                    });
+        }
+    };
+
+    /**
+     * Packet capture builder.
+     */
+    public static class Builder {
+        private static final int DEFAULT_SAMPLE_RATE = 1000;
+        private static final int DEFAULT_MAX_BYTES = 65535;
+
+        private int sampleRate = DEFAULT_SAMPLE_RATE;
+        private int maxBytes = DEFAULT_MAX_BYTES;
+        private Sink sink = LOGGING_SINK;
+
+        /**
+         * Capture one message in every sampleRate, in each direction. Default
+         * is 1000.
+         */
+        public Builder sampleRate(int sampleRateArg) {
+            this.sampleRate = sampleRateArg;
+            return this;
+        }
+
+        /**
+         * The most bytes of a message captured. Default is 65535.
+         */
+        public Builder maxBytes(int maxBytesArg) {
+            this.maxBytes = maxBytesArg;
+            return this;
+        }
+
+        /**
+         * Where captured messages go. Default is the log.
+         */
+        public Builder sink(Sink sinkArg) {
+            this.sink = sinkArg;
+            return this;
+        }
+
+        /**
+         * Create a new packet capture stage.
+         *
+         * @return A PacketCaptureHandler
+         */
+        public PacketCaptureHandler build() {
+            if (sampleRate < 1 || maxBytes < 0 || sink == null) {
+                throw new IllegalStateException(
+                        "invalid sampleRate, maxBytes or sink");
+            }
+            return new PacketCaptureHandler(this);
+        }
+    }
+
+    /**
+     * Obtain a new builder instance.
+     *
+     * @return A Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final int sampleRate;
+    private final int maxBytes;
+    private final Sink sink;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    private PacketCaptureHandler(final Builder builder) {
+        this.sampleRate = builder.sampleRate;
+        this.maxBytes = builder.maxBytes;
+        this.sink = builder.sink;
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer
+                && received.getAndIncrement() % sampleRate == 0) {
+            capture(true, e);
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+        if (e.getMessage() instanceof ChannelBuffer
+                && sent.getAndIncrement() % sampleRate == 0) {
+            capture(false, e);
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    private void capture(final boolean inbound, final MessageEvent e) {
+        ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+        byte[] packet = new byte[Math.min(buffer.readableBytes(), maxBytes)];
+        buffer.getBytes(buffer.readerIndex(), packet);
+        SocketAddress remote = e.getRemoteAddress() != null
+                ? e.getRemoteAddress() : e.getChannel().getRemoteAddress();
+        try {
+            sink.capture(inbound, remote, packet);
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Packet capture failed", ex);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Opcode;
+import biz.neustar.hopper.message.Rcode;
+
+/**
+ * Rejects unwanted requests from the header and question alone, before the
+ * message decoder builds every record of them. Requests are
+ * <ul>
+ * <li>dropped when shorter than a header or when the QR flag is set, so that
+ * responses are never answered;</li>
+ * <li>answered with NOTIMP when their opcode is not accepted;</li>
+ * <li>answered with FORMERR when they do not have exactly one well formed
+ * question, or carry more additional records than allowed.</li>
+ * </ul>
+ * Requests passing the checks are handed on undecoded. Place the stage right
+ * before the message decoder; obtain one from {@link #builder()}.
+ */
+@Sharable
+public class QueryFilter extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(QueryFilter.class);
+
+    /**
+     * Filter builder.
+     */
+    public static class Builder {
+        private static final int DEFAULT_MAX_ADDITIONAL = 2;
+
+        private Opcode[] opcodes = { Opcode.QUERY };
+        private int maxAdditional = DEFAULT_MAX_ADDITIONAL;
+        private boolean answerRejected = true;
+
+        /**
+         * The accepted opcodes. Default is QUERY only.
+         */
+        public Builder opcodes(Opcode... opcodesArg) {
+            this.opcodes = opcodesArg;
+            return this;
+        }
+
+        /**
+         * The most records accepted in the additional section. Default is 2,
+         * an OPT and a TSIG record.
+         */
+        public Builder maxAdditional(int maxAdditionalArg) {
+            this.maxAdditional = maxAdditionalArg;
+            return this;
+        }
+
+        /**
+         * Whether rejected requests are answered with NOTIMP or FORMERR, or
+         * silently dropped. Default is true.
+         */
+        public Builder answerRejected(boolean answerRejectedArg) {
+            this.answerRejected = answerRejectedArg;
+            return this;
+        }
+
+        /**
+         * Create a new filter.
+         *
+         * @return A QueryFilter
+         */
+        public QueryFilter build() {
+            return new QueryFilter(this);
+        }
+    }
+
+    /**
+     * Obtain a new builder instance.
+     *
+     * @return A Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    static final int HEADER_LENGTH = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int OPCODES = 16;
+
+    private final boolean[] opcodes = new boolean[OPCODES];
+    private final int maxAdditional;
+    private final boolean answerRejected;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private QueryFilter(final Builder builder) {
+        for (Opcode opcode : builder.opcodes) {
+            this.opcodes[opcode.getValue()] = true;
+        }
+        this.maxAdditional = builder.maxAdditional;
+        this.answerRejected = builder.answerRejected;
+    }
+
+    /**
+     * The number of requests dropped without an answer.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The number of requests answered with NOTIMP or FORMERR.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        ChannelBuffer request = (ChannelBuffer) e.getMessage();
+        int offset = request.readerIndex();
+        if (request.readableBytes() < HEADER_LENGTH
+                || (request.getUnsignedByte(offset + 2) & 0x80) != 0) {
+            dropped.incrementAndGet();
+            LOGGER.debug("Dropping non-query from {}", e.getRemoteAddress());
+            return;
+        }
+        int nameLength = questionNameLength(request);
+        int questionLength = nameLength < 0 ? 0 : nameLength + 4;
+        int rcode;
+        if (!opcodes[(request.getUnsignedByte(offset + 2) >> 3) & 0xF]) {
+            rcode = Rcode.NOTIMP;
+        } else if (nameLength < 0
+                || request.getUnsignedShort(offset + 4) != 1
+                || request.getUnsignedShort(offset + 10) > maxAdditional) {
+            rcode = Rcode.FORMERR;
+        } else {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        if (!answerRejected) {
+            dropped.incrementAndGet();
+            LOGGER.debug("Dropping {} request from {}",
+                    Rcode.string(rcode), e.getRemoteAddress());
+            return;
+        }
+        rejected.incrementAndGet();
+        LOGGER.debug("Answering {} to {}",
+                Rcode.string(rcode), e.getRemoteAddress());
+        Channels.write(ctx, Channels.future(ctx.getChannel()),
+                Responses.reply(ctx.getChannel().getConfig()
+                        .getBufferFactory(), request, questionLength, rcode),
+                e.getRemoteAddress());
+    }
+
+    /**
+     * Measure the name of the first question of a request.
+     *
+     * @return The length of the name, or -1 if the request has no question or
+     *         it is malformed or compressed
+     */
+    static int questionNameLength(final ChannelBuffer request) {
+        int offset = request.readerIndex();
+        int length = request.readableBytes();
+        if (length < HEADER_LENGTH
+                || request.getUnsignedShort(offset + 4) == 0) {
+            return -1;
+        }
+        int pos = HEADER_LENGTH;
+        while (true) {
+            if (pos >= length || pos - HEADER_LENGTH >= MAX_NAME_LENGTH) {
+                return -1;
+            }
+            int labelLength = request.getUnsignedByte(offset + pos++);
+            if (labelLength == 0) {
+                break;
+            }
+            if (labelLength > MAX_LABEL_LENGTH) {
+                return -1;
+            }
+            pos += labelLength;
+        }
+        // and room for the type and class
+        return pos + 4 <= length ? pos - HEADER_LENGTH : -1;
+    }
+}
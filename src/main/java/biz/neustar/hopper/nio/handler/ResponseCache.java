@@ -0,0 +1,281 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import biz.neustar.hopper.message.Name;
+
+/**
+ * A cache of rendered responses, in wire format, for the
+ * {@link ResponseCacheHandler} stage. Entries are keyed on the request bytes
+ * that determine the answer (flags, question and EDNS parameters, with the
+ * name case folded) and expire with the smallest TTL of the response. The
+ * total size of the cached responses is bounded; once the budget is reached
+ * expired entries are evicted first, then arbitrary ones.
+ * <p>
+ * The cache is meant for authoritative data: TTLs are served as rendered, not
+ * decremented. When the data changes, stale responses must be dropped through
+ * one of the invalidate methods. Obtain an instance from {@link #builder()}.
+ * </p>
+ */
+public class ResponseCache {
+
+    /**
+     * Cache builder.
+     */
+    public static class Builder {
+        private static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+        private static final long DEFAULT_MAX_TTL = 3600;
+
+        private long maxBytes = DEFAULT_MAX_BYTES;
+        private long maxTtl = DEFAULT_MAX_TTL;
+
+        /**
+         * The maximum total size of the cached requests and responses.
+         * Default is 16MB.
+         */
+        public Builder maxBytes(long maxBytesArg) {
+            this.maxBytes = maxBytesArg;
+            return this;
+        }
+
+        /**
+         * The maximum number of seconds a response is cached, whatever its
+         * TTL. Default is 3600.
+         */
+        public Builder maxTtl(long maxTtlArg) {
+            this.maxTtl = maxTtlArg;
+            return this;
+        }
+
+        /**
+         * Create a new cache.
+         *
+         * @return A ResponseCache
+         */
+        public ResponseCache build() {
+            if (maxBytes < 1 || maxTtl < 0) {
+                throw new IllegalStateException("invalid maxBytes or maxTtl");
+            }
+            return new ResponseCache(this);
+        }
+    }
+
+    /**
+     * Obtain a new builder instance.
+     *
+     * @return A Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The offset of the question name in a key: keys start after the message
+     * ID.
+     */
+    static final int NAME_OFFSET = 10;
+
+    /**
+     * The request bytes a response is cached under.
+     */
+    static final class Key {
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(final byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Key && hash == ((Key) o).hash
+                    && Arrays.equals(bytes, ((Key) o).bytes);
+        }
+
+        /**
+         * Check whether the key is for a question name, and a type unless it
+         * is negative.
+         */
+        boolean matches(final byte[] name, final int type) {
+            if (bytes.length < NAME_OFFSET + name.length + 2) {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (bytes[NAME_OFFSET + i] != name[i]) {
+                    return false;
+                }
+            }
+            int at = NAME_OFFSET + name.length;
+            return type < 0
+                    || ((bytes[at] & 0xFF) << 8 | (bytes[at + 1] & 0xFF)) == type;
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+        private final byte[] response;
+        private final long expires;
+        private final int size;
+
+        private Entry(final Key key, final byte[] response, final long expires) {
+            this.response = response;
+            this.expires = expires;
+            this.size = key.bytes.length + response.length;
+        }
+
+        byte[] getResponse() {
+            return response;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxTtl;
+    private final ConcurrentMap<Key, Entry> entries =
+            new ConcurrentHashMap<Key, Entry>();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private ResponseCache(final Builder builder) {
+        this.maxBytes = builder.maxBytes;
+        this.maxTtl = builder.maxTtl;
+    }
+
+    /**
+     * The number of requests answered from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of cacheable requests passed on to the handler.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of cached responses.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove every cached response.
+     */
+    public void invalidateAll() {
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Remove the cached responses to questions for a name, of any type.
+     *
+     * @param name
+     *            The name
+     */
+    public void invalidate(final Name name) {
+        invalidate(name, -1);
+    }
+
+    /**
+     * Remove the cached responses to questions for a name and type.
+     *
+     * @param name
+     *            The name
+     * @param type
+     *            The type
+     */
+    public void invalidate(final Name name, final int type) {
+        byte[] wire = name.toWireCanonical();
+        for (Map.Entry<Key, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().matches(wire, type)) {
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Look up the response to a request.
+     *
+     * @return The cached entry, or null
+     */
+    Entry get(final Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires - System.currentTimeMillis() <= 0) {
+            remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Cache the response to a request.
+     *
+     * @param ttl
+     *            The number of seconds the response is valid for
+     */
+    void put(final Key key, final byte[] response, final long ttl) {
+        long seconds = Math.min(ttl, maxTtl);
+        if (seconds <= 0) {
+            return;
+        }
+        Entry entry = new Entry(key, response,
+                System.currentTimeMillis() + seconds * 1000);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        bytes.addAndGet(old == null ? entry.size : entry.size - old.size);
+        if (bytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Bring the cache back under its budget, expired entries first.
+     */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getValue().expires - now <= 0) {
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+        it = entries.entrySet().iterator();
+        while (bytes.get() > maxBytes && it.hasNext()) {
+            Map.Entry<Key, Entry> entry = it.next();
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void remove(final Key key, final Entry entry) {
+        if (entries.remove(key, entry)) {
+            bytes.addAndGet(-entry.size);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Rcode;
+import biz.neustar.hopper.message.Type;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Serves UDP requests from a {@link ResponseCache} before they are decoded.
+ * The request header and question are checked in wire format; on a hit the
+ * cached response is copied with the request's message ID and question name
+ * case patched in, and written without building a Message. On a miss the
+ * request is passed on, and the rendered response is cached on its way out.
+ * <p>
+ * Only plain queries with a single question are cached: QR clear, opcode
+ * QUERY, no answer or authority records and at most an OPT record without
+ * options in the additional section. Only NOERROR and NXDOMAIN responses that
+ * are neither truncated nor signed are cached. When a
+ * {@link ResponseRateLimiter} is given, hits are accounted against it.
+ * </p>
+ * The stage must be placed between the datagram and the message decoder.
+ */
+@Sharable
+public class ResponseCacheHandler extends SimpleChannelHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ResponseCacheHandler.class);
+
+    private static final int HEADER_LENGTH = QueryFilter.HEADER_LENGTH;
+    private static final int OPT_LENGTH = 11;
+
+    /**
+     * The most requests awaiting a response to be cached.
+     */
+    private static final int MAX_PENDING = 4096;
+
+    /**
+     * Used to fold the case of name bytes.
+     */
+    private static final byte[] LOWERCASE = new byte[256];
+
+    static {
+        for (int i = 0; i < LOWERCASE.length; i++) {
+            LOWERCASE[i] = (byte) (i >= 'A' && i <= 'Z' ? i - 'A' + 'a' : i);
+        }
+    }
+
+    /**
+     * A request awaiting its response.
+     */
+    private static final class Pending {
+        private final SocketAddress remote;
+        private final int id;
+
+        Pending(final SocketAddress remote, final int id) {
+            this.remote = remote;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return remote.hashCode() * 31 + id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Pending && id == ((Pending) o).id
+                    && remote.equals(((Pending) o).remote);
+        }
+    }
+
+    private final ResponseCache cache;
+    private final ResponseRateLimiter rateLimiter;
+    private final ConcurrentMap<Pending, ResponseCache.Key> pending =
+            new ConcurrentHashMap<Pending, ResponseCache.Key>();
+
+    /**
+     * Create a stage serving from a cache.
+     *
+     * @param cache
+     *            The cache
+     * @param rateLimiter
+     *            The rate limiter hits are accounted against, may be null
+     */
+    public ResponseCacheHandler(final ResponseCache cache,
+            final ResponseRateLimiter rateLimiter) {
+        this.cache = cache;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        ChannelBuffer request = (ChannelBuffer) e.getMessage();
+        int nameLength = cacheableNameLength(request);
+        ResponseCache.Key key = nameLength < 0
+                ? null : key(request, nameLength);
+        ResponseCache.Entry entry = key == null ? null : cache.get(key);
+        if (entry == null) {
+            if (key != null) {
+                if (pending.size() >= MAX_PENDING) {
+                    // a response that never came, make room for this one
+                    Iterator<Pending> stale = pending.keySet().iterator();
+                    if (stale.hasNext()) {
+                        stale.next();
+                        stale.remove();
+                    }
+                }
+                pending.put(new Pending(e.getRemoteAddress(),
+                        request.getUnsignedShort(request.readerIndex())), key);
+            }
+            super.messageReceived(ctx, e);
+            return;
+        }
+
+        int offset = request.readerIndex();
+        int outcome = ResponseRateLimiter.ALLOW;
+        if (rateLimiter != null) {
+            outcome = rateLimiter.admit(e.getRemoteAddress(),
+                    nameHash(request, nameLength),
+                    request.getUnsignedShort(offset + HEADER_LENGTH
+                            + nameLength));
+        }
+        ChannelBuffer response;
+        if (outcome == ResponseRateLimiter.ALLOW) {
+            byte[] cached = entry.getResponse();
+            response = ctx.getChannel().getConfig().getBufferFactory()
+                    .getBuffer(cached.length);
+            response.writeBytes(cached);
+            response.setBytes(0, request, offset, 2);
+            response.setBytes(HEADER_LENGTH, request,
+                    offset + HEADER_LENGTH, nameLength);
+        } else if (outcome == ResponseRateLimiter.SLIP) {
+            response = Responses.truncated(
+                    ctx.getChannel().getConfig().getBufferFactory(),
+                    request, nameLength + 4);
+        } else {
+            LOGGER.debug("Dropping rate limited request from {}",
+                    e.getRemoteAddress());
+            return;
+        }
+        Channels.write(ctx, Channels.future(ctx.getChannel()), response,
+                e.getRemoteAddress());
+    }
+
+    @Override
+    public void writeRequested(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        if (e.getMessage() instanceof ChannelBuffer && !pending.isEmpty()) {
+            ChannelBuffer response = (ChannelBuffer) e.getMessage();
+            if (response.readableBytes() >= HEADER_LENGTH) {
+                ResponseCache.Key key = pending.remove(new Pending(
+                        e.getRemoteAddress(),
+                        response.getUnsignedShort(response.readerIndex())));
+                if (key != null) {
+                    store(key, response);
+                }
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    /**
+     * Cache a response if it answers the question of the request.
+     */
+    private void store(final ResponseCache.Key key,
+            final ChannelBuffer buffer) {
+        byte[] response = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), response);
+        Message message;
+        try {
+            message = new Message(response);
+        } catch (Exception e) {
+            LOGGER.debug("Not caching unparsable response", e);
+            return;
+        }
+        int rcode = message.getRcode();
+        Record question = message.getQuestion();
+        if ((rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN)
+                || (response[2] & 0x02) != 0
+                || message.isSigned()
+                || message.getHeader().getCount(0) != 1
+                || !key.matches(question.getName().toWireCanonical(),
+                        question.getType())) {
+            return;
+        }
+        long ttl = Long.MAX_VALUE;
+        for (int section = 1; section <= 3; section++) {
+            for (Record record : message.getSectionArray(section)) {
+                if (record.getType() != Type.OPT) {
+                    ttl = Math.min(ttl, record.getTTL());
+                }
+            }
+        }
+        if (ttl != Long.MAX_VALUE) {
+            cache.put(key, response, ttl);
+        }
+    }
+
+    /**
+     * Check that a request is a cacheable query and measure its question
+     * name.
+     *
+     * @return The length of the question name, or -1 if the request is not
+     *         cacheable
+     */
+    private static int cacheableNameLength(final ChannelBuffer request) {
+        int offset = request.readerIndex();
+        int length = request.readableBytes();
+        if (length < HEADER_LENGTH) {
+            return -1;
+        }
+        int flags = request.getUnsignedByte(offset + 2);
+        // QR set or an opcode other than QUERY
+        if ((flags & 0xF8) != 0
+                || request.getUnsignedShort(offset + 4) != 1
+                || request.getUnsignedShort(offset + 6) != 0
+                || request.getUnsignedShort(offset + 8) != 0
+                || request.getUnsignedShort(offset + 10) > 1) {
+            return -1;
+        }
+        int nameLength = QueryFilter.questionNameLength(request);
+        if (nameLength < 0) {
+            return -1;
+        }
+        int pos = HEADER_LENGTH + nameLength + 4;
+        if (request.getUnsignedShort(offset + 10) == 1) {
+            // the OPT record: root name, type, payload size, extended rcode,
+            // version and flags, and no options
+            if (pos + OPT_LENGTH != length
+                    || request.getUnsignedByte(offset + pos) != 0
+                    || request.getUnsignedShort(offset + pos + 1) != Type.OPT
+                    || request.getUnsignedShort(offset + pos + 9) != 0) {
+                return -1;
+            }
+            pos += OPT_LENGTH;
+        }
+        return pos == length ? nameLength : -1;
+    }
+
+    /**
+     * The cache key of a request: everything but the message ID, with the
+     * question name case folded.
+     */
+    private static ResponseCache.Key key(final ChannelBuffer request,
+            final int nameLength) {
+        byte[] bytes = new byte[request.readableBytes() - 2];
+        request.getBytes(request.readerIndex() + 2, bytes);
+        for (int i = 0; i < nameLength; i++) {
+            int at = ResponseCache.NAME_OFFSET + i;
+            bytes[at] = LOWERCASE[bytes[at] & 0xFF];
+        }
+        return new ResponseCache.Key(bytes);
+    }
+
+    /**
+     * The hash code of the question name, as computed by
+     * {@link biz.neustar.hopper.message.Name#hashCode()}.
+     */
+    private static int nameHash(final ChannelBuffer request,
+            final int nameLength) {
+        int offset = request.readerIndex() + HEADER_LENGTH;
+        int code = 0;
+        for (int i = 0; i < nameLength; i++) {
+            code += (code << 3) + LOWERCASE[request.getUnsignedByte(offset + i)];
+        }
+        return code;
+    }
+}
@@ -0,0 +1,215 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.nio.QueryFuture;
+import biz.neustar.hopper.nio.QueryFutureListener;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Matches the responses received on client channels to the queries in
+ * flight, so that many queries can share a channel. A query is identified by
+ * its channel, and so its local port, its destination, its message ID and
+ * its question name, and the response must repeat the question exactly.
+ * Responses without a question, which some servers send with errors, are
+ * not trusted. Matching responses complete the future of their query and go
+ * no further; any other message is passed on to the next handler. Queries
+ * that are not answered in time fail with a {@link TimeoutException}, and
+ * those in flight on a channel that closes fail with a
+ * {@link ClosedChannelException}.
+ */
+@Sharable
+public class ResponseCorrelator extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ResponseCorrelator.class);
+
+    /**
+     * The queries in flight.
+     */
+    private final ConcurrentMap<Key, QueryFuture> pending =
+            new ConcurrentHashMap<Key, QueryFuture>();
+
+    /**
+     * Drives the query timeouts.
+     */
+    private final Timer timer;
+
+    /**
+     * Match responses to queries.
+     *
+     * @param timerArg
+     *            The timer that expires the queries
+     */
+    public ResponseCorrelator(final Timer timerArg) {
+        this.timer = timerArg;
+    }
+
+    /**
+     * The number of queries in flight.
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Expect the response to a query. Call before the query is written.
+     *
+     * @param channel
+     *            The channel the query is sent on
+     * @param remote
+     *            The address the query is sent to
+     * @param future
+     *            The future of the query
+     * @param timeoutMillis
+     *            How long to wait for the response
+     *
+     * @return false if a query with the same ID is already in flight to the
+     *         address on the channel
+     */
+    public boolean register(final Channel channel, final SocketAddress remote,
+            final QueryFuture future, final long timeoutMillis) {
+
+        Message query = future.getQuery();
+        final Key key = new Key(channel.getId(), remote,
+                query.getHeader().getID(), questionName(query));
+        if (pending.putIfAbsent(key, future) != null) {
+            return false;
+        }
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+
+            @Override
+            public void run(final Timeout t) {
+                future.setFailure(new TimeoutException("No response from "
+                        + remote + " after " + timeoutMillis + " ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.addListener(new QueryFutureListener() {
+
+            @Override
+            public void operationComplete(final QueryFuture f) {
+                pending.remove(key, f);
+                timeout.cancel();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        if (e.getMessage() instanceof Message) {
+            Message response = (Message) e.getMessage();
+            QueryFuture future = pending.get(new Key(e.getChannel().getId(),
+                    e.getRemoteAddress(), response.getHeader().getID(),
+                    questionName(response)));
+            if (future != null && answers(future.getQuery(), response)) {
+                future.setResponse(response);
+                return;
+            }
+            LOGGER.debug("Unmatched response {} from {}",
+                    response.getHeader().getID(), e.getRemoteAddress());
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(
+            final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+
+        int channelId = e.getChannel().getId();
+        for (Map.Entry<Key, QueryFuture> entry : pending.entrySet()) {
+            if (entry.getKey().channelId == channelId) {
+                entry.getValue().setFailure(new ClosedChannelException());
+            }
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * The name in the question of a message, null if it has none.
+     */
+    private static Name questionName(final Message message) {
+        Record question = message.getQuestion();
+        return question == null ? null : question.getName();
+    }
+
+    /**
+     * Does the response repeat the question of the query?
+     */
+    static boolean answers(final Message query, final Message response) {
+        Record asked = query.getQuestion();
+        Record question = response.getQuestion();
+        if (question == null || asked == null) {
+            return question == asked;
+        }
+        return question.getType() == asked.getType()
+                && question.getDClass() == asked.getDClass()
+                && question.getName().equals(asked.getName());
+    }
+
+    /**
+     * Identifies a query in flight.
+     */
+    private static final class Key {
+
+        private final int channelId;
+        private final SocketAddress remote;
+        private final int id;
+        private final Name name;
+
+        private Key(final int channelIdArg, final SocketAddress remoteArg,
+                final int idArg, final Name nameArg) {
+            this.channelId = channelIdArg;
+            this.remote = remoteArg;
+            this.id = idArg;
+            this.name = nameArg;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return channelId == other.channelId && id == other.id
+                    && (remote == null ? other.remote == null
+                            : remote.equals(other.remote))
+                    && (name == null ? other.name == null
+                            : name.equals(other.name));
+        }
+
+        @Override
+        public int hashCode() {
+            return ((channelId * 31 + id) * 31
+                    + (remote == null ? 0 : remote.hashCode())) * 31
+                    + (name == null ? 0 : name.hashCode());
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Response rate limiting (RRL) for UDP. Requests are accounted in token
+ * buckets keyed by the client's network prefix and the queried name and type,
+ * which for authoritative traffic identify the response that would be sent.
+ * Requests over the rate are dropped before they reach the application thread
+ * pool; every slip-th limited request is instead answered with an empty,
+ * truncated response so that legitimate clients retry over TCP.
+ * <p>
+ * The buckets live in a fixed-size, lock-free table: each key probes a few
+ * slots and evicts the stalest one when it finds no match, so memory use is
+ * constant whatever the number of clients. One instance is shared by all the
+ * pipelines it protects; obtain one from {@link #builder()}.
+ * </p>
+ */
+@Sharable
+public class ResponseRateLimiter extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ResponseRateLimiter.class);
+
+    /**
+     * Rate limiter builder.
+     */
+    public static class Builder {
+        private static final int DEFAULT_RATE = 10;
+        private static final int DEFAULT_SLIP = 2;
+        private static final int DEFAULT_TABLE_SIZE = 1 << 16;
+        private static final int DEFAULT_IPV4_PREFIX = 24;
+        private static final int DEFAULT_IPV6_PREFIX = 56;
+
+        private int responsesPerSecond = DEFAULT_RATE;
+        private int burst = DEFAULT_RATE;
+        private int slip = DEFAULT_SLIP;
+        private int tableSize = DEFAULT_TABLE_SIZE;
+        private int ipv4PrefixLength = DEFAULT_IPV4_PREFIX;
+        private int ipv6PrefixLength = DEFAULT_IPV6_PREFIX;
+
+        /**
+         * The sustained number of identical responses per second allowed to a
+         * client prefix. Default is 10.
+         */
+        public Builder responsesPerSecond(int responsesPerSecondArg) {
+            this.responsesPerSecond = responsesPerSecondArg;
+            return this;
+        }
+
+        /**
+         * The number of responses allowed in a burst. Default is 10.
+         */
+        public Builder burst(int burstArg) {
+            this.burst = burstArg;
+            return this;
+        }
+
+        /**
+         * Answer every slip-th limited request with a truncated response
+         * instead of dropping it. 0 drops every limited request, 1 truncates
+         * every one. Default is 2.
+         */
+        public Builder slip(int slipArg) {
+            this.slip = slipArg;
+            return this;
+        }
+
+        /**
+         * The number of buckets, rounded up to a power of two. Default is
+         * 65536.
+         */
+        public Builder tableSize(int tableSizeArg) {
+            this.tableSize = tableSizeArg;
+            return this;
+        }
+
+        /**
+         * The prefix length grouping IPv4 clients. Default is 24.
+         */
+        public Builder ipv4PrefixLength(int ipv4PrefixLengthArg) {
+            this.ipv4PrefixLength = ipv4PrefixLengthArg;
+            return this;
+        }
+
+        /**
+         * The prefix length grouping IPv6 clients. Default is 56.
+         */
+        public Builder ipv6PrefixLength(int ipv6PrefixLengthArg) {
+            this.ipv6PrefixLength = ipv6PrefixLengthArg;
+            return this;
+        }
+
+        /**
+         * Create a new rate limiter.
+         *
+         * @return A ResponseRateLimiter
+         */
+        public ResponseRateLimiter build() {
+            if (responsesPerSecond < 1 || burst < 1
+                    || burst > MAX_BURST) {
+                throw new IllegalStateException(
+                        "responsesPerSecond and burst must be in [1.."
+                        + MAX_BURST + "]");
+            }
+            if (slip < 0 || tableSize < 1) {
+                throw new IllegalStateException("invalid slip or tableSize");
+            }
+            return new ResponseRateLimiter(this);
+        }
+    }
+
+    /**
+     * Obtain a new builder instance.
+     *
+     * @return A Builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Outcomes of {@link #admit(SocketAddress, int, int)}: pass the request
+     * on, answer it with a truncated response, or drop it.
+     */
+    static final int ALLOW = 0;
+    static final int SLIP = 1;
+    static final int DROP = 2;
+
+    /**
+     * Tokens are counted in thousandths to accrue fractions of a response.
+     */
+    private static final long TOKEN = 1000;
+
+    /**
+     * The largest burst that fits the token bits of a bucket.
+     */
+    private static final int MAX_BURST = 1000;
+
+    /**
+     * Bucket state: the last update time (milliseconds since the limiter was
+     * created) in the high bits, the tokens in the low TOKEN_BITS bits.
+     */
+    private static final int TOKEN_BITS = 20;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    /**
+     * The number of slots probed per key.
+     */
+    private static final int PROBES = 4;
+
+    private final long ratePerMilli;
+    private final long maxTokens;
+    private final int slip;
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+    private final int mask;
+    private final long epoch = System.currentTimeMillis();
+
+    /**
+     * The bucket keys and states, indexed by slot.
+     */
+    private final AtomicLongArray keys;
+    private final AtomicLongArray states;
+
+    private final AtomicLong allowed = new AtomicLong();
+
+    /**
+     * Every limited request, to pick those that slip.
+     */
+    private final AtomicLong limited = new AtomicLong();
+    private final AtomicLong slipped = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private ResponseRateLimiter(final Builder builder) {
+        this.ratePerMilli = builder.responsesPerSecond;
+        this.maxTokens = builder.burst * TOKEN;
+        this.slip = builder.slip;
+        this.ipv4PrefixLength = builder.ipv4PrefixLength;
+        this.ipv6PrefixLength = builder.ipv6PrefixLength;
+        int size = Integer.highestOneBit(Math.max(builder.tableSize, PROBES));
+        if (size < builder.tableSize) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.keys = new AtomicLongArray(size);
+        this.states = new AtomicLongArray(size);
+    }
+
+    /**
+     * The number of requests passed on to the application.
+     */
+    public long getAllowed() {
+        return allowed.get();
+    }
+
+    /**
+     * The number of limited requests answered with a truncated response.
+     */
+    public long getSlipped() {
+        return slipped.get();
+    }
+
+    /**
+     * The number of limited requests dropped.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        Object message = e.getMessage();
+        if (!(message instanceof Message)) {
+            super.messageReceived(ctx, e);
+            return;
+        }
+        Message request = (Message) message;
+        Record question = request.getQuestion();
+        switch (admit(e.getRemoteAddress(),
+                question == null ? 0 : question.getName().hashCode(),
+                question == null ? 0 : question.getType())) {
+        case ALLOW:
+            super.messageReceived(ctx, e);
+            break;
+        case SLIP:
+            ctx.getChannel().write(Responses.truncated(request),
+                    e.getRemoteAddress());
+            break;
+        default:
+            LOGGER.debug("Dropping rate limited request from {}",
+                    e.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Account a request and decide its fate.
+     *
+     * @param remote
+     *            The client address
+     * @param nameHash
+     *            The hash code of the question name, as computed by
+     *            {@link biz.neustar.hopper.message.Name#hashCode()}
+     * @param type
+     *            The question type
+     *
+     * @return One of {@link #ALLOW}, {@link #SLIP} and {@link #DROP}
+     */
+    int admit(final SocketAddress remote, final int nameHash, final int type) {
+        if (acquire(key(remote, nameHash, type))) {
+            allowed.incrementAndGet();
+            return ALLOW;
+        }
+        if (slip > 0 && limited.incrementAndGet() % slip == 0) {
+            slipped.incrementAndGet();
+            return SLIP;
+        }
+        dropped.incrementAndGet();
+        return DROP;
+    }
+
+    /**
+     * Compute the bucket key of a request: the client prefix, the question
+     * name hash and type.
+     */
+    private long key(final SocketAddress remote, final int nameHash,
+            final int type) {
+        long hash = 0xcbf29ce484222325L;
+        if (remote instanceof InetSocketAddress) {
+            InetAddress address = ((InetSocketAddress) remote).getAddress();
+            byte[] bytes = address.getAddress();
+            int prefix = bytes.length == 4 ? ipv4PrefixLength
+                    : ipv6PrefixLength;
+            for (int i = 0; i < bytes.length && prefix > 0; i++, prefix -= 8) {
+                int b = bytes[i] & (prefix >= 8 ? 0xFF : (0xFF00 >> prefix));
+                hash = (hash ^ b) * 0x100000001b3L;
+            }
+        }
+        hash = (hash ^ nameHash) * 0x100000001b3L;
+        hash = (hash ^ type) * 0x100000001b3L;
+        // 0 marks an empty slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Take a token from the bucket of a key.
+     *
+     * @return true if the request is within the rate
+     */
+    private boolean acquire(final long key) {
+        long now = System.currentTimeMillis() - epoch;
+        int slot = find(key, now);
+        while (true) {
+            long state = states.get(slot);
+            long tokens;
+            if (keys.get(slot) != key) {
+                // evicted meanwhile, start over with a full bucket
+                tokens = maxTokens;
+            } else {
+                long elapsed = Math.max(0, now - (state >>> TOKEN_BITS));
+                tokens = Math.min(maxTokens,
+                        (state & TOKEN_MASK) + elapsed * ratePerMilli);
+            }
+            boolean within = tokens >= TOKEN;
+            if (within) {
+                tokens -= TOKEN;
+            }
+            if (states.compareAndSet(slot, state,
+                    (now << TOKEN_BITS) | tokens)) {
+                return within;
+            }
+        }
+    }
+
+    /**
+     * Find the slot of a key, claiming the stalest probed slot for it if it
+     * has none. Races between claims only ever reset a bucket.
+     */
+    private int find(final long key, final long now) {
+        int start = (int) (key ^ (key >>> 32)) & mask;
+        int stalest = start;
+        long stalestTime = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & mask;
+            long current = keys.get(slot);
+            if (current == key) {
+                return slot;
+            }
+            long time = current == 0 ? -1 : states.get(slot) >>> TOKEN_BITS;
+            if (time < stalestTime) {
+                stalest = slot;
+                stalestTime = time;
+            }
+        }
+        keys.set(stalest, key);
+        states.set(stalest, (now << TOKEN_BITS) | maxTokens);
+        return stalest;
+    }
+}
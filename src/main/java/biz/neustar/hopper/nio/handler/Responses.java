@@ -0,0 +1,99 @@
+package biz.neustar.hopper.nio.handler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Builds the minimal responses the server sends on its own, without invoking
+ * the application handler.
+ */
+public final class Responses {
+
+    private Responses() {
+    }
+
+    /**
+     * Create an empty response to a request, echoing the message ID, opcode,
+     * RD flag and question.
+     *
+     * @param request The request
+     * @param rcode The response code
+     *
+     * @return The response
+     */
+    public static Message reply(final Message request, final int rcode) {
+        Message response = new Message(request.getHeader().getID());
+        response.getHeader().setFlag(Flag.QR);
+        response.getHeader().setOpcode(request.getHeader().getOpcode());
+        if (request.getHeader().isFlagSet(Flag.RD)) {
+            response.getHeader().setFlag(Flag.RD);
+        }
+        response.getHeader().setRcode(rcode);
+        Record question = request.getQuestion();
+        if (question != null) {
+            response.addRecord(question, Section.QUESTION);
+        }
+        return response;
+    }
+
+    /**
+     * Create an empty, truncated response to a request, telling the client to
+     * retry over TCP.
+     *
+     * @param request The request
+     *
+     * @return The response
+     */
+    public static Message truncated(final Message request) {
+        Message response = reply(request, 0);
+        response.getHeader().setFlag(Flag.TC);
+        return response;
+    }
+
+    /**
+     * Create an empty response to a request in wire format, without decoding
+     * it. The message ID, opcode and RD flag are echoed, as is the question
+     * if there is one.
+     *
+     * @param factory The factory of the response buffer
+     * @param request The request, at least a header
+     * @param questionLength The length of the first question of the request,
+     *            0 to leave out the question
+     * @param rcode The response code
+     *
+     * @return The response
+     */
+    static ChannelBuffer reply(final ChannelBufferFactory factory,
+            final ChannelBuffer request, final int questionLength,
+            final int rcode) {
+        int length = QueryFilter.HEADER_LENGTH + questionLength;
+        ChannelBuffer response = factory.getBuffer(length);
+        response.writeBytes(request, request.readerIndex(), length);
+        // QR, and the opcode and RD of the request
+        response.setByte(2, 0x80
+                | (request.getUnsignedByte(request.readerIndex() + 2) & 0x79));
+        response.setByte(3, rcode & 0xF);
+        response.setShort(4, questionLength == 0 ? 0 : 1);
+        response.setShort(6, 0);
+        response.setShort(8, 0);
+        response.setShort(10, 0);
+        return response;
+    }
+
+    /**
+     * Create an empty, truncated response to a request in wire format.
+     *
+     * @see #reply(ChannelBufferFactory, ChannelBuffer, int, int)
+     */
+    static ChannelBuffer truncated(final ChannelBufferFactory factory,
+            final ChannelBuffer request, final int questionLength) {
+        ChannelBuffer response = reply(factory, request, questionLength, 0);
+        response.setByte(2, response.getUnsignedByte(2) | 0x02);
+        return response;
+    }
+}
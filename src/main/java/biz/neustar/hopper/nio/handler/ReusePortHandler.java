@@ -0,0 +1,112 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipelineException;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.ServerSocketChannel;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sets SO_REUSEPORT on a datagram or server socket channel when it is opened,
+ * before it is bound, so that several channels can bind the same port and the
+ * kernel spreads the incoming datagrams or connections across them. For a
+ * server socket, register the handler as the parent handler of the bootstrap.
+ * The handler removes itself from the pipeline once the option is set.
+ * <p>
+ * SO_REUSEPORT is only exposed by Java 9 and later, and Netty does not expose
+ * the underlying NIO channels, so all are looked up reflectively. Use
+ * {@link #isSupported()} to check for support before relying on it.
+ * </p>
+ */
+public class ReusePortHandler extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(ReusePortHandler.class);
+
+    /**
+     * The SO_REUSEPORT socket option, null if the runtime lacks it.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT;
+
+    /**
+     * Accessor for the NIO channel underlying a Netty datagram channel.
+     */
+    private static final Method GET_DATAGRAM_CHANNEL;
+
+    /**
+     * The NIO channel underlying a Netty server socket channel.
+     */
+    private static final Field SERVER_SOCKET;
+
+    static {
+        SocketOption<Boolean> option = null;
+        Method method = null;
+        Field field = null;
+        try {
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> reusePort = (SocketOption<Boolean>)
+                    StandardSocketOptions.class.getField("SO_REUSEPORT")
+                    .get(null);
+            method = NioDatagramChannel.class
+                    .getDeclaredMethod("getDatagramChannel");
+            method.setAccessible(true);
+            field = Class.forName(
+                    "org.jboss.netty.channel.socket.nio.NioServerSocketChannel")
+                    .getDeclaredField("socket");
+            field.setAccessible(true);
+            option = reusePort;
+        } catch (Exception e) {
+            LOGGER.debug("SO_REUSEPORT is not available", e);
+            method = null;
+            field = null;
+        }
+        SO_REUSEPORT = option;
+        GET_DATAGRAM_CHANNEL = method;
+        SERVER_SOCKET = field;
+    }
+
+    /**
+     * Can SO_REUSEPORT be set on this runtime?
+     *
+     * @return true if the option is available
+     */
+    public static boolean isSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    @Override
+    public void channelOpen(
+            final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+
+        if (!isSupported()) {
+            throw new ChannelPipelineException("SO_REUSEPORT is not supported");
+        }
+        NetworkChannel channel;
+        if (ctx.getChannel() instanceof NioDatagramChannel) {
+            channel = (NetworkChannel) GET_DATAGRAM_CHANNEL.invoke(
+                    ctx.getChannel());
+        } else if (ctx.getChannel() instanceof ServerSocketChannel) {
+            channel = (NetworkChannel) SERVER_SOCKET.get(ctx.getChannel());
+        } else {
+            throw new ChannelPipelineException("Cannot set SO_REUSEPORT on "
+                    + ctx.getChannel().getClass().getName());
+        }
+        channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+        LOGGER.debug("SO_REUSEPORT set on {}", ctx.getChannel().getId());
+        ctx.getPipeline().remove(this);
+        super.channelOpen(ctx, e);
+    }
+}
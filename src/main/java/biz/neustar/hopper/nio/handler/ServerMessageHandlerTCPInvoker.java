@@ -1,15 +1,19 @@
 package biz.neustar.hopper.nio.handler;
 
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 
 import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.AsyncServerMessageHandler;
+import biz.neustar.hopper.nio.ResponseCallback;
 import biz.neustar.hopper.nio.ServerMessageHandler;
 
 /**
- * Netty handler for invoking a ServerMessageHandler (a server side callback).
+ * Netty handler for invoking a ServerMessageHandler or an
+ * AsyncServerMessageHandler (a server side callback).
   */
 public class ServerMessageHandlerTCPInvoker extends SimpleChannelUpstreamHandler {
 
@@ -18,6 +22,11 @@ public class ServerMessageHandlerTCPInvoker extends SimpleChannelUpstreamHandler
      */
     private final ServerMessageHandler handler;
 
+    /**
+     * The asynchronous server message callback.
+     */
+    private final AsyncServerMessageHandler asyncHandler;
+
     /**
      * The constructor.
      *
@@ -26,6 +35,18 @@ public class ServerMessageHandlerTCPInvoker extends SimpleChannelUpstreamHandler
     public ServerMessageHandlerTCPInvoker(
             final ServerMessageHandler handlerArg) {
         this.handler = handlerArg;
+        this.asyncHandler = null;
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param asyncHandlerArg The asynchronous server side handler
+     */
+    public ServerMessageHandlerTCPInvoker(
+            final AsyncServerMessageHandler asyncHandlerArg) {
+        this.handler = null;
+        this.asyncHandler = asyncHandlerArg;
     }
 
     /**
@@ -44,8 +65,22 @@ public class ServerMessageHandlerTCPInvoker extends SimpleChannelUpstreamHandler
 
         Object request = e.getMessage();
         if (request instanceof Message) {
-            Message response = handler.handleRequest((Message) request);
-            ctx.getChannel().write(response);
+            if (asyncHandler != null) {
+                final Channel channel = ctx.getChannel();
+                asyncHandler.handleRequest((Message) request,
+                        new ResponseCallback() {
+
+                    @Override
+                    public void respond(final Message response) {
+                        if (response != null) {
+                            channel.write(response);
+                        }
+                    }
+                });
+            } else {
+                Message response = handler.handleRequest((Message) request);
+                ctx.getChannel().write(response);
+            }
         }
         super.messageReceived(ctx, e);
     }
@@ -63,7 +98,11 @@ public class ServerMessageHandlerTCPInvoker extends SimpleChannelUpstreamHandler
     public void exceptionCaught(
             final ChannelHandlerContext ctx, final ExceptionEvent e)
                     throws Exception {
-        handler.handleException(e.getCause());
+        if (asyncHandler != null) {
+            asyncHandler.handleException(e.getCause());
+        } else {
+            handler.handleException(e.getCause());
+        }
         super.exceptionCaught(ctx, e);
     }
 
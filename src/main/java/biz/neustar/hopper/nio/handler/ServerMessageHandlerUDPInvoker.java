@@ -1,23 +1,38 @@
 package biz.neustar.hopper.nio.handler;
 
+import java.net.SocketAddress;
+
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 
 import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.nio.AsyncServerMessageHandler;
+import biz.neustar.hopper.nio.ResponseCallback;
 import biz.neustar.hopper.nio.ServerMessageHandler;
 
 /**
- * Netty handler for invoking a ServerMessageHandler.
+ * Netty handler for invoking a ServerMessageHandler or an
+ * AsyncServerMessageHandler.
  */
 public class ServerMessageHandlerUDPInvoker extends SimpleChannelUpstreamHandler {
 
     private final ServerMessageHandler handler;
 
+    private final AsyncServerMessageHandler asyncHandler;
+
     public ServerMessageHandlerUDPInvoker(
             final ServerMessageHandler handlerArg) {
         this.handler = handlerArg;
+        this.asyncHandler = null;
+    }
+
+    public ServerMessageHandlerUDPInvoker(
+            final AsyncServerMessageHandler asyncHandlerArg) {
+        this.handler = null;
+        this.asyncHandler = asyncHandlerArg;
     }
 
     @Override
@@ -27,8 +42,23 @@ public class ServerMessageHandlerUDPInvoker extends SimpleChannelUpstreamHandler
 
         Object request = e.getMessage();
         if (request instanceof Message) {
-            Message response = handler.handleRequest((Message) request);
-            ctx.getChannel().write(response, e.getRemoteAddress());
+            if (asyncHandler != null) {
+                final Channel channel = ctx.getChannel();
+                final SocketAddress remoteAddress = e.getRemoteAddress();
+                asyncHandler.handleRequest((Message) request,
+                        new ResponseCallback() {
+
+                    @Override
+                    public void respond(final Message response) {
+                        if (response != null) {
+                            channel.write(response, remoteAddress);
+                        }
+                    }
+                });
+            } else {
+                Message response = handler.handleRequest((Message) request);
+                ctx.getChannel().write(response, e.getRemoteAddress());
+            }
         }
         super.messageReceived(ctx, e);
     }
@@ -37,8 +67,11 @@ public class ServerMessageHandlerUDPInvoker extends SimpleChannelUpstreamHandler
     public void exceptionCaught(
             final ChannelHandlerContext ctx,
             final ExceptionEvent e) throws Exception {
-        handler.handleException(e.getCause());
+        if (asyncHandler != null) {
+            asyncHandler.handleException(e.getCause());
+        } else {
+            handler.handleException(e.getCause());
+        }
         super.exceptionCaught(ctx, e);
     }
 }
-
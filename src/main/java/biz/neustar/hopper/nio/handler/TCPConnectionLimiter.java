@@ -0,0 +1,151 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caps the number of concurrent TCP connections, in total and per client
+ * address. Connections over either limit are closed as soon as they are
+ * accepted, before any other handler sees them. One instance is shared by the
+ * pipelines of all the connections it limits.
+ */
+@Sharable
+public class TCPConnectionLimiter extends SimpleChannelUpstreamHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(TCPConnectionLimiter.class);
+
+    /**
+     * The maximum number of connections, 0 for no limit.
+     */
+    private final int maxConnections;
+
+    /**
+     * The maximum number of connections per client address, 0 for no limit.
+     */
+    private final int maxConnectionsPerClient;
+
+    /**
+     * The number of open connections.
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * The number of open connections per client address.
+     */
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> clients =
+            new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+    /**
+     * The constructor.
+     *
+     * @param maxConnectionsArg The total limit, 0 for no limit
+     * @param maxConnectionsPerClientArg The per client limit, 0 for no limit
+     */
+    public TCPConnectionLimiter(
+            final int maxConnectionsArg,
+            final int maxConnectionsPerClientArg) {
+        this.maxConnections = maxConnectionsArg;
+        this.maxConnectionsPerClient = maxConnectionsPerClientArg;
+    }
+
+    /**
+     * The number of connections currently open.
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public void channelConnected(
+            final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+
+        InetAddress client = clientOf(ctx.getChannel().getRemoteAddress());
+        if (!acquire(client)) {
+            LOGGER.debug("Refusing connection from {}, limit reached",
+                    client);
+            ctx.getChannel().close();
+            return;
+        }
+        ctx.setAttachment(client);
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(
+            final ChannelHandlerContext ctx,
+            final ChannelStateEvent e) throws Exception {
+
+        InetAddress client = (InetAddress) ctx.getAttachment();
+        if (client != null) {
+            ctx.setAttachment(null);
+            release(client);
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    private static InetAddress clientOf(final SocketAddress address) {
+        return ((InetSocketAddress) address).getAddress();
+    }
+
+    private boolean acquire(final InetAddress client) {
+        int open = connections.incrementAndGet();
+        if (maxConnections > 0 && open > maxConnections) {
+            connections.decrementAndGet();
+            return false;
+        }
+        if (maxConnectionsPerClient > 0 && !acquireClient(client)) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean acquireClient(final InetAddress client) {
+        while (true) {
+            AtomicInteger count = clients.get(client);
+            if (count == null) {
+                if (clients.putIfAbsent(client, new AtomicInteger(1)) == null) {
+                    return true;
+                }
+                continue;
+            }
+            int current = count.get();
+            if (current == 0) {
+                // released concurrently, replace it
+                clients.remove(client, count);
+                continue;
+            }
+            if (current >= maxConnectionsPerClient) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(final InetAddress client) {
+        connections.decrementAndGet();
+        if (maxConnectionsPerClient > 0) {
+            AtomicInteger count = clients.get(client);
+            if (count != null && count.decrementAndGet() == 0) {
+                clients.remove(client, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import biz.neustar.hopper.message.EDNSOption;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.TCPKeepaliveOption;
+import biz.neustar.hopper.record.OPTRecord;
+
+/**
+ * Closes a TCP connection once an upstream
+ * {@link org.jboss.netty.handler.timeout.IdleStateHandler} reports it idle,
+ * and negotiates the idle timeout with clients through the edns-tcp-keepalive
+ * option (RFC 7828): once a client has sent the option, every response that
+ * carries an OPT record advertises the server's timeout. One instance is
+ * needed per connection.
+ */
+public class TCPKeepaliveHandler extends IdleStateAwareChannelHandler {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(TCPKeepaliveHandler.class);
+
+    /**
+     * The idle timeout advertised to clients, in units of 100 milliseconds.
+     */
+    private final int timeout;
+
+    /**
+     * Has the client asked for the keepalive timeout?
+     */
+    private volatile boolean requested;
+
+    /**
+     * The constructor.
+     *
+     * @param idleTimeoutSecondsArg The idle timeout applied to the connection
+     */
+    public TCPKeepaliveHandler(final int idleTimeoutSecondsArg) {
+        this.timeout = Math.min(idleTimeoutSecondsArg * 10,
+                TCPKeepaliveOption.MAX_TIMEOUT);
+    }
+
+    @Override
+    public void channelIdle(
+            final ChannelHandlerContext ctx,
+            final IdleStateEvent e) throws Exception {
+
+        LOGGER.debug("Closing idle connection {}", ctx.getChannel().getId());
+        ctx.getChannel().close();
+    }
+
+    @Override
+    public void messageReceived(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        if (!requested && e.getMessage() instanceof Message) {
+            OPTRecord opt = ((Message) e.getMessage()).getOPT();
+            if (opt != null && !opt.getOptions(
+                    EDNSOption.Code.TCP_KEEPALIVE.getValue()).isEmpty()) {
+                requested = true;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(
+            final ChannelHandlerContext ctx,
+            final MessageEvent e) throws Exception {
+
+        if (requested && e.getMessage() instanceof Message) {
+            Message response = advertise((Message) e.getMessage());
+            if (response != e.getMessage()) {
+                Channels.write(ctx, e.getFuture(), response,
+                        e.getRemoteAddress());
+                return;
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    /**
+     * Replace any edns-tcp-keepalive option in the response with the server's
+     * timeout. The response is left untouched, as the application may share
+     * it between connections and transports; a copy is returned instead,
+     * unless the response already advertises the timeout.
+     */
+    private Message advertise(final Message response) {
+        OPTRecord opt = response.getOPT();
+        TCPKeepaliveOption keepalive = new TCPKeepaliveOption(timeout);
+        if (opt == null || opt.getOptions(
+                EDNSOption.Code.TCP_KEEPALIVE.getValue()).equals(
+                        Collections.singletonList(keepalive))) {
+            return response;
+        }
+        List<EDNSOption> options = new ArrayList<EDNSOption>();
+        for (EDNSOption option : opt.getOptions()) {
+            if (!EDNSOption.Code.TCP_KEEPALIVE.equals(option.getCode())) {
+                options.add(option);
+            }
+        }
+        options.add(keepalive);
+        Message copy = (Message) response.clone();
+        copy.removeRecord(opt, Section.ADDITIONAL);
+        copy.addRecord(new OPTRecord(opt.getPayloadSize(),
+                opt.getExtendedRcode(), opt.getVersion(), opt.getFlags(),
+                options), Section.ADDITIONAL);
+        return copy;
+    }
+}
@@ -0,0 +1,79 @@
+package biz.neustar.hopper.nio.handler;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates executors that run each task on a new virtual thread, so that
+ * handlers which block on I/O can run by the thousands without sizing a
+ * thread pool. Virtual threads are only available from Java 21, so the
+ * factory is looked up reflectively. Use {@link #isSupported()} to check for
+ * support before relying on it.
+ */
+public final class VirtualThreads {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(VirtualThreads.class);
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), null if the runtime lacks
+     * it.
+     */
+    private static final Method NEW_EXECUTOR;
+
+    static {
+        Method method = null;
+        try {
+            method = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            // Virtual threads are a preview feature before Java 21
+            ((ExecutorService) method.invoke(null)).shutdown();
+        } catch (Exception e) {
+            LOGGER.debug("Virtual threads are not available", e);
+            method = null;
+        }
+        NEW_EXECUTOR = method;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Can virtual threads be started on this runtime?
+     *
+     * @return true if they are available
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     *
+     * @return The executor
+     *
+     * @throws IllegalStateException
+     *             If the runtime does not support virtual threads
+     */
+    public static ExecutorService newExecutor() {
+        if (!isSupported()) {
+            throw new IllegalStateException(
+                    "Virtual threads are not supported");
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
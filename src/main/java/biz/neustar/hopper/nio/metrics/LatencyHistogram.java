@@ -0,0 +1,134 @@
+package biz.neustar.hopper.nio.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of latencies in nanoseconds. Values are counted in
+ * log-linear buckets: each power of two is split in {@link #SUB_BUCKETS}
+ * buckets, so values are resolved within about 6% up to roughly a minute,
+ * and recording is a few atomic increments with no allocation.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of buckets per power of two, as a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest power of two resolved, about 68 seconds. Larger values are
+     * counted in the last bucket.
+     */
+    private static final int MAX_EXPONENT = 36;
+
+    private static final int BUCKETS =
+            (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos
+     *            The latency in nanoseconds, negative values count as 0
+     */
+    public void record(final long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Take a snapshot of the recorded latencies. Concurrent recording may
+     * make the snapshot slightly inconsistent.
+     *
+     * @return The snapshot
+     */
+    public LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new LatencySnapshot(total,
+                total == 0 ? 0 : sum.get() / total / 1000,
+                percentile(copy, total, 0.5) / 1000,
+                percentile(copy, total, 0.9) / 1000,
+                percentile(copy, total, 0.99) / 1000,
+                percentile(copy, total, 0.999) / 1000,
+                max.get() / 1000);
+    }
+
+    /**
+     * The number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Forget all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * The highest value of the bucket holding a percentile.
+     */
+    private static long percentile(final long[] copy, final long total,
+            final double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < copy.length; i++) {
+            seen += copy[i];
+            if (seen >= rank) {
+                return lowest(i + 1) - 1;
+            }
+        }
+        return lowest(copy.length) - 1;
+    }
+
+    static int index(final long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS)
+                + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * The lowest value counted in a bucket.
+     */
+    static long lowest(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return ((long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))) << shift;
+    }
+}
@@ -0,0 +1,69 @@
+package biz.neustar.hopper.nio.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A summary of a {@link LatencyHistogram}, in microseconds. Percentiles are
+ * the upper bounds of the histogram buckets they fall in.
+ */
+public class LatencySnapshot {
+
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    @ConstructorProperties({ "count", "mean", "p50", "p90", "p99", "p999",
+            "max" })
+    public LatencySnapshot(final long count, final long mean, final long p50,
+            final long p90, final long p99, final long p999, final long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /**
+     * The number of latencies recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " mean=" + mean + "us p50=" + p50
+                + "us p90=" + p90 + "us p99=" + p99 + "us p999=" + p999
+                + "us max=" + max + "us";
+    }
+}
@@ -0,0 +1,295 @@
+package biz.neustar.hopper.nio.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Opcode;
+import biz.neustar.hopper.message.Rcode;
+import biz.neustar.hopper.message.Type;
+import biz.neustar.hopper.record.Record;
+
+/**
+ * Counters and latency histograms of a DNS server, fed by
+ * {@link biz.neustar.hopper.nio.handler.MetricsHandler}. Recording is
+ * lock-free and does not allocate. The values are read through the getters,
+ * or through JMX once the instance is registered with
+ * {@link #registerMBean(String)}.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    /**
+     * Counters indexed by a code, with a final slot for larger codes.
+     */
+    private static final class Counters {
+        private final AtomicLongArray counts;
+
+        Counters(final int size) {
+            counts = new AtomicLongArray(size + 1);
+        }
+
+        void increment(final int code) {
+            int last = counts.length() - 1;
+            counts.incrementAndGet(code < 0 || code > last ? last : code);
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+        }
+
+        abstract static class Namer {
+            abstract String name(int code);
+        }
+
+        Map<String, Long> toMap(final Namer namer) {
+            Map<String, Long> map = new TreeMap<String, Long>();
+            int last = counts.length() - 1;
+            for (int i = 0; i <= last; i++) {
+                long count = counts.get(i);
+                if (count != 0) {
+                    map.put(i == last ? "OTHER" : namer.name(i), count);
+                }
+            }
+            return map;
+        }
+    }
+
+    private static final int OPCODES = 16;
+    private static final int TYPES = 512;
+    private static final int RCODES = 32;
+
+    private final AtomicLong udpRequests = new AtomicLong();
+    private final AtomicLong tcpRequests = new AtomicLong();
+    private final AtomicLong udpResponses = new AtomicLong();
+    private final AtomicLong tcpResponses = new AtomicLong();
+    private final AtomicLong truncatedResponses = new AtomicLong();
+    private final Counters opcodes = new Counters(OPCODES);
+    private final Counters types = new Counters(TYPES);
+    private final Counters rcodes = new Counters(RCODES);
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram handlerLatency = new LatencyHistogram();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private volatile ObjectName objectName;
+
+    /**
+     * Count a decoded request.
+     *
+     * @param request
+     *            The request
+     * @param tcp
+     *            Whether it was received over TCP
+     */
+    public void recordRequest(final Message request, final boolean tcp) {
+        Record question = request.getQuestion();
+        recordRequest(request.getHeader().getOpcode().getValue(),
+                question == null ? -1 : question.getType(), tcp);
+    }
+
+    /**
+     * Count a request from the fields of its wire format.
+     *
+     * @param opcode
+     *            The opcode
+     * @param type
+     *            The type of the question, -1 if there is none
+     * @param tcp
+     *            Whether it was received over TCP
+     */
+    public void recordRequest(final int opcode, final int type,
+            final boolean tcp) {
+        (tcp ? tcpRequests : udpRequests).incrementAndGet();
+        opcodes.increment(opcode);
+        if (type >= 0) {
+            types.increment(type);
+        }
+    }
+
+    /**
+     * Count a response about to be encoded.
+     *
+     * @param response
+     *            The response
+     * @param tcp
+     *            Whether it is sent over TCP
+     */
+    public void recordResponse(final Message response, final boolean tcp) {
+        recordResponse(response.getRcode(),
+                response.getHeader().isFlagSet(Flag.TC), tcp);
+    }
+
+    /**
+     * Count a response from the fields of its wire format.
+     *
+     * @param rcode
+     *            The rcode
+     * @param truncated
+     *            Whether the TC flag is set
+     * @param tcp
+     *            Whether it is sent over TCP
+     */
+    public void recordResponse(final int rcode, final boolean truncated,
+            final boolean tcp) {
+        (tcp ? tcpResponses : udpResponses).incrementAndGet();
+        rcodes.increment(rcode);
+        if (truncated) {
+            truncatedResponses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record the time taken to decode a request.
+     */
+    public void recordDecode(final long nanos) {
+        decodeLatency.record(nanos);
+    }
+
+    /**
+     * Record the time taken by the server message handler.
+     */
+    public void recordHandler(final long nanos) {
+        handlerLatency.record(nanos);
+    }
+
+    /**
+     * Count a request handed to the application thread pool.
+     */
+    public void recordEnqueue() {
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Count a request taken off the application thread pool queue.
+     */
+    public void recordDequeue() {
+        queued.decrementAndGet();
+    }
+
+    @Override
+    public long getUdpRequests() {
+        return udpRequests.get();
+    }
+
+    @Override
+    public long getTcpRequests() {
+        return tcpRequests.get();
+    }
+
+    @Override
+    public long getUdpResponses() {
+        return udpResponses.get();
+    }
+
+    @Override
+    public long getTcpResponses() {
+        return tcpResponses.get();
+    }
+
+    @Override
+    public long getTruncatedResponses() {
+        return truncatedResponses.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeCounts() {
+        return opcodes.toMap(new Counters.Namer() {
+
+            @Override
+            String name(final int code) {
+                return Opcode.valueOf(code).getName();
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Long> getQueryTypeCounts() {
+        return types.toMap(new Counters.Namer() {
+
+            @Override
+            String name(final int code) {
+                return Type.string(code);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Long> getRcodeCounts() {
+        return rcodes.toMap(new Counters.Namer() {
+
+            @Override
+            String name(final int code) {
+                return Rcode.string(code);
+            }
+        });
+    }
+
+    @Override
+    public LatencySnapshot getDecodeLatency() {
+        return decodeLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getHandlerLatency() {
+        return handlerLatency.snapshot();
+    }
+
+    @Override
+    public void reset() {
+        udpRequests.set(0);
+        tcpRequests.set(0);
+        udpResponses.set(0);
+        tcpResponses.set(0);
+        truncatedResponses.set(0);
+        opcodes.reset();
+        types.reset();
+        rcodes.reset();
+        decodeLatency.reset();
+        handlerLatency.reset();
+    }
+
+    /**
+     * Register with the platform MBean server.
+     *
+     * @param name
+     *            The object name, e.g. "biz.neustar.hopper:type=DnsServer"
+     *
+     * @throws JMException
+     *             If the name is invalid or already registered
+     */
+    public void registerMBean(final String name) throws JMException {
+        ObjectName registered = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                registered);
+        objectName = registered;
+    }
+
+    /**
+     * Unregister from the platform MBean server, if registered.
+     *
+     * @throws JMException
+     *             If unregistering fails
+     */
+    public void unregisterMBean() throws JMException {
+        ObjectName registered = objectName;
+        if (registered != null) {
+            objectName = null;
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    registered);
+        }
+    }
+}
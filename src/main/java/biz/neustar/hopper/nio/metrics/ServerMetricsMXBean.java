@@ -0,0 +1,69 @@
+package biz.neustar.hopper.nio.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ServerMetrics}.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * The number of requests received over UDP.
+     */
+    long getUdpRequests();
+
+    /**
+     * The number of requests received over TCP.
+     */
+    long getTcpRequests();
+
+    /**
+     * The number of responses sent over UDP.
+     */
+    long getUdpResponses();
+
+    /**
+     * The number of responses sent over TCP.
+     */
+    long getTcpResponses();
+
+    /**
+     * The number of responses sent with the TC flag set.
+     */
+    long getTruncatedResponses();
+
+    /**
+     * The number of requests waiting for an application thread.
+     */
+    int getQueueDepth();
+
+    /**
+     * The number of requests per opcode mnemonic.
+     */
+    Map<String, Long> getOpcodeCounts();
+
+    /**
+     * The number of requests per question type mnemonic.
+     */
+    Map<String, Long> getQueryTypeCounts();
+
+    /**
+     * The number of responses per rcode mnemonic.
+     */
+    Map<String, Long> getRcodeCounts();
+
+    /**
+     * The time spent decoding requests.
+     */
+    LatencySnapshot getDecodeLatency();
+
+    /**
+     * The time spent in the server message handler.
+     */
+    LatencySnapshot getHandlerLatency();
+
+    /**
+     * Reset all counters and latencies.
+     */
+    void reset();
+}
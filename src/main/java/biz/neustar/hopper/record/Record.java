@@ -220,7 +220,7 @@ public abstract class Record implements Cloneable, Comparable<Record>, Serializa
         Name name;
         Record rec;
 
-        name = new Name(in);
+        name = new Name(in).intern();
         type = in.readU16();
         dclass = DClass.valueOf(in.readU16());
 
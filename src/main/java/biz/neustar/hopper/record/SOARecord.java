@@ -66,8 +66,8 @@ public class SOARecord extends Record {
     }
 
     protected void rrFromWire(DNSInput in) throws IOException {
-        host = new Name(in);
-        admin = new Name(in);
+        host = new Name(in).intern();
+        admin = new Name(in).intern();
         serial = in.readU32();
         refresh = in.readU32();
         retry = in.readU32();
@@ -62,7 +62,7 @@ public class SRVRecord extends Record {
         priority = in.readU16();
         weight = in.readU16();
         port = in.readU16();
-        target = new Name(in);
+        target = new Name(in).intern();
     }
 
     protected void rdataFromString(Tokenizer st, Name origin) throws IOException {
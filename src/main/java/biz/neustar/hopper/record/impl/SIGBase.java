@@ -69,7 +69,7 @@ public abstract class SIGBase extends Record {
         expire = new Date(1000 * in.readU32());
         timeSigned = new Date(1000 * in.readU32());
         footprint = in.readU16();
-        signer = new Name(in);
+        signer = new Name(in).intern();
         signature = in.readByteArray();
     }
 
@@ -39,7 +39,7 @@ public abstract class SingleNameBase extends Record {
     }
 
     protected void rrFromWire(DNSInput in) throws IOException {
-        singleName = new Name(in);
+        singleName = new Name(in).intern();
     }
 
     protected void rdataFromString(Tokenizer st, Name origin) throws IOException {
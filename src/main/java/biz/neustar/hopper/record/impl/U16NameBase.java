@@ -43,7 +43,7 @@ public abstract class U16NameBase extends Record {
 
     protected void rrFromWire(DNSInput in) throws IOException {
         u16Field = in.readU16();
-        nameField = new Name(in);
+        nameField = new Name(in).intern();
     }
 
     protected void rdataFromString(Tokenizer st, Name origin) throws IOException {
@@ -139,7 +139,7 @@ public class Master {
 
     private Name parseName(String s, Name origin) throws TextParseException {
         try {
-            return Name.fromString(s, origin);
+            return Name.fromString(s, origin).intern();
         } catch (TextParseException e) {
             throw st.exception(e.getMessage());
         }
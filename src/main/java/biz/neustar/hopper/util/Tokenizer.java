@@ -559,7 +559,7 @@ public class Tokenizer {
             if (!name.isAbsolute()) {
                 throw new RelativeNameException(name);
             }
-            return name;
+            return name.intern();
         } catch (TextParseException e) {
             throw exception(e.getMessage());
         }
@@ -38,6 +38,8 @@ import junit.framework.TestCase;
 import biz.neustar.hopper.config.Options;
 import biz.neustar.hopper.exception.TextParseException;
 import biz.neustar.hopper.message.Compression;
+import biz.neustar.hopper.message.DNSInput;
+import biz.neustar.hopper.message.DNSOutput;
 import biz.neustar.hopper.message.Name;
 
 public class CompressionTest extends TestCase {
@@ -45,6 +47,10 @@ public class CompressionTest extends TestCase {
         Options.set("verbosecompression");
     }
 
+    public void tearDown() {
+        Options.unset("verbosecompression");
+    }
+
     public void test() throws TextParseException {
         Compression c = new Compression();
         Name n = Name.fromString("www.amazon.com.");
@@ -57,4 +63,48 @@ public class CompressionTest extends TestCase {
         c.add(10, n2);
         assertEquals(10, c.get(n2));
     }
+
+    public void test_suffix() throws Exception {
+        Compression c = new Compression();
+        DNSOutput out = new DNSOutput();
+        Name n1 = Name.fromString("www.example.com.");
+        Name n2 = Name.fromString("mail.EXAMPLE.com.");
+        n1.toWire(out, c);
+        assertEquals(17, out.current());
+        assertEquals(4, c.get(Name.fromString("example.com.")));
+        assertEquals(12, c.get(Name.fromString("com.")));
+
+        // one label, then a pointer to "example.com."
+        n2.toWire(out, c);
+        assertEquals(17 + 5 + 2, out.current());
+        assertEquals(17, c.get(n2));
+
+        DNSInput in = new DNSInput(out.toByteArray());
+        assertEquals(n1, new Name(in));
+        assertEquals(n2, new Name(in));
+    }
+
+    public void test_grow_and_reset() throws TextParseException {
+        Options.unset("verbosecompression");
+        Compression c = new Compression();
+        for (int i = 0; i < 1000; i++) {
+            c.add(i, Name.fromString("host" + i + ".example."));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, c.get(Name.fromString("HOST" + i + ".example.")));
+        }
+        c.reset();
+        assertEquals(-1, c.get(Name.fromString("host0.example.")));
+    }
+
+    public void test_truncate() throws TextParseException {
+        Compression c = new Compression();
+        Name n1 = Name.fromString("a.example.");
+        Name n2 = Name.fromString("b.example.");
+        c.add(12, n1);
+        c.add(40, n2);
+        c.truncate(40);
+        assertEquals(12, c.get(n1));
+        assertEquals(-1, c.get(n2));
+    }
 }
@@ -34,6 +34,7 @@
 //
 package biz.neustar.hopper;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import junit.framework.TestCase;
@@ -310,4 +311,35 @@ public class DNSInputTest extends TestCase
 	assertEquals( 3, m_di.current() );
 	assertEquals( out[0], 2 );
     }
+
+    public void test_offset_region() throws WireParseException
+    {
+	byte[] padded = new byte[ m_raw.length + 5 ];
+	System.arraycopy( m_raw, 0, padded, 3, m_raw.length );
+	DNSInput di = new DNSInput( padded, 3, m_raw.length );
+	assertEquals( 0, di.current() );
+	assertEquals( 10, di.remaining() );
+	assertEquals( 1, di.readU16() );
+	assertEquals( 2, di.readU8() );
+	di.jump( 6 );
+	assertEquals( 0xFFFFFFFFL, di.readU32() );
+	assertEquals( 0, di.remaining() );
+    }
+
+    public void test_direct_buffer() throws WireParseException
+    {
+	ByteBuffer direct = ByteBuffer.allocateDirect( m_raw.length + 2 );
+	direct.put( new byte[] { 9, 9 } );
+	direct.put( m_raw );
+	direct.position( 2 );
+	DNSInput di = new DNSInput( direct );
+	assertEquals( 10, di.remaining() );
+	di.jump( 1 );
+	assertEquals( 258, di.readU16() );
+	byte[] out = di.readByteArray( 3 );
+	assertEquals( new byte[] { 3, 4, 5 }, out );
+	di.jump( 0 );
+	assertEquals( m_raw, di.readByteArray() );
+	assertEquals( 2, direct.position() );
+    }
 }
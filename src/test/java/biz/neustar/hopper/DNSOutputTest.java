@@ -34,6 +34,9 @@
 //
 package biz.neustar.hopper;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import junit.framework.TestCase;
 import biz.neustar.hopper.message.DNSOutput;
 
@@ -266,4 +269,33 @@ public class DNSOutputTest extends TestCase
 	}
     }
 
+
+    public void test_byteBuffer_direct()
+    {
+	ByteBuffer direct = ByteBuffer.allocateDirect( 8 );
+	direct.position( 2 );
+	m_do = new DNSOutput( direct );
+	m_do.writeU16( 0xABCD );
+	m_do.writeByteArray( new byte[] { 1, 2, 3 } );
+	m_do.writeU16At( 0x1234, 0 );
+	assertEquals( 5, m_do.current() );
+	assertEquals( new byte[] { 0x12, 0x34, 1, 2, 3 }, m_do.toByteArray() );
+	assertEquals( 2, direct.position() );
+	assertEquals( 0x12, direct.get( 2 ) );
+    }
+
+    public void test_byteBuffer_overflow()
+    {
+	m_do = new DNSOutput( ByteBuffer.allocate( 3 ) );
+	m_do.writeU16( 1 );
+	try {
+	    m_do.writeU16( 2 );
+	    fail( "BufferOverflowException not thrown" );
+	}
+	catch( BufferOverflowException e ){
+	    // pass
+	}
+	assertEquals( 2, m_do.current() );
+    }
+
 }
@@ -34,8 +34,11 @@
 //
 package biz.neustar.hopper;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import junit.framework.Test;
@@ -48,7 +51,11 @@ import biz.neustar.hopper.message.Header;
 import biz.neustar.hopper.message.Message;
 import biz.neustar.hopper.message.Name;
 import biz.neustar.hopper.message.Opcode;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.Type;
 import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.NSRecord;
+import biz.neustar.hopper.record.OPTRecord;
 import biz.neustar.hopper.record.Record;
 
 public class MessageTest {
@@ -111,11 +118,154 @@ public class MessageTest {
             assertEquals(true, h.isFlagSet(Flag.RD));
         }
 
+        public void test_fromByteBuffer() throws IOException {
+            Name n = Name.fromString("The.Name.");
+            ARecord ar = new ARecord(n, DClass.IN, 1,
+                    InetAddress.getByName("192.168.101.110"));
+            byte[] wire = Message.newQuery(ar).toWire();
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(wire.length + 4);
+            direct.putInt(0);
+            direct.put(wire);
+            direct.position(4);
+
+            Message m = new Message(direct);
+            assertEquals(4, direct.position());
+            assertEquals(wire.length, m.numBytes());
+            assertEquals(n, m.getQuestion().getName());
+            assertTrue(Arrays.equals(wire, m.toWire()));
+        }
+
+        public void test_toByteBuffer() throws IOException {
+            Name n = Name.fromString("The.Name.");
+            ARecord ar = new ARecord(n, DClass.IN, 1,
+                    InetAddress.getByName("192.168.101.110"));
+            Message m = Message.newQuery(ar);
+            byte[] wire = m.toWire();
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(wire.length + 2);
+            direct.position(2);
+            assertEquals(wire.length, m.toWire(direct));
+            assertEquals(wire.length + 2, direct.position());
+            direct.position(2);
+            byte[] rendered = new byte[wire.length];
+            direct.get(rendered);
+            assertTrue(Arrays.equals(wire, rendered));
+
+            ByteBuffer small = ByteBuffer.allocate(wire.length - 1);
+            try {
+                m.toWire(small);
+                fail("BufferOverflowException not thrown");
+            } catch (BufferOverflowException e) {
+                assertEquals(0, small.position());
+            }
+        }
+
+    }
+
+    public static class Test_lazy extends TestCase {
+        private Message response() throws IOException {
+            Name n = Name.fromString("www.example.com.");
+            Name zone = Name.fromString("example.com.");
+            Message m = new Message(0x1234);
+            m.getHeader().setFlag(Flag.QR);
+            m.addRecord(Record.newRecord(n, Type.A, DClass.IN),
+                    Section.QUESTION);
+            m.addRecord(new ARecord(n, DClass.IN, 300,
+                    InetAddress.getByName("192.0.2.1")), Section.ANSWER);
+            m.addRecord(new NSRecord(zone, DClass.IN, 300,
+                    Name.fromString("ns1.example.com.")), Section.AUTHORITY);
+            m.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+            return m;
+        }
+
+        public void test_sections() throws IOException {
+            byte[] wire = response().toWire();
+            Message eager = new Message(wire);
+            Message lazy = Message.newLazy(wire);
+            assertEquals(wire.length, lazy.numBytes());
+            assertEquals(eager.getQuestion(), lazy.getQuestion());
+            assertEquals(eager.getOPT(), lazy.getOPT());
+            for (int i = 0; i < 4; i++) {
+                assertTrue(Arrays.equals(eager.getSectionArray(i),
+                        lazy.getSectionArray(i)));
+            }
+        }
+
+        public void test_reemit() throws IOException {
+            byte[] wire = response().toWire();
+            Message lazy = Message.newLazy(ByteBuffer.wrap(wire));
+            assertNotNull(lazy.getQuestion());
+            assertTrue(Arrays.equals(wire, lazy.toWire()));
+
+            lazy.getHeader().setID(0x4321);
+            byte[] rendered = lazy.toWire(512);
+            assertEquals(wire.length, rendered.length);
+            assertEquals(0x43, rendered[0]);
+            assertEquals(0x21, rendered[1]);
+            for (int i = 2; i < wire.length; i++) {
+                assertEquals(wire[i], rendered[i]);
+            }
+        }
+
+        public void test_modified() throws IOException {
+            byte[] wire = response().toWire();
+            Message eager = new Message(wire);
+            Message lazy = Message.newLazy(wire);
+            Record extra = new ARecord(Name.fromString("ns1.example.com."),
+                    DClass.IN, 300, InetAddress.getByName("192.0.2.53"));
+            eager.addRecord(extra, Section.ADDITIONAL);
+            lazy.addRecord(extra, Section.ADDITIONAL);
+            assertEquals(2, lazy.getHeader().getCount(Section.ADDITIONAL));
+            assertTrue(Arrays.equals(eager.toWire(), lazy.toWire()));
+
+            lazy = Message.newLazy(wire);
+            lazy.removeAllRecords(Section.AUTHORITY);
+            assertEquals(0, new Message(lazy.toWire())
+                    .getSectionArray(Section.AUTHORITY).length);
+        }
+
+        public void test_invalid_record() throws IOException {
+            byte[] wire = new byte[] { 0, 1, (byte) 0x81, (byte) 0x80, 0, 1,
+                    0, 1, 0, 0, 0, 0, 1, 'a', 0, 0, 1, 0, 1, (byte) 0xC0, 12,
+                    0, 1, 0, 1, 0, 0, 0, 0, 0, 3, 1, 2, 3 };
+            try {
+                new Message(wire);
+                fail("IOException not thrown");
+            } catch (IOException e) {
+            }
+            Message lazy = Message.newLazy(wire);
+            assertEquals(Name.fromString("a."), lazy.getQuestion().getName());
+            for (int i = 0; i < 2; i++) {
+                try {
+                    lazy.getSectionArray(Section.ANSWER);
+                    fail("IllegalStateException not thrown");
+                } catch (IllegalStateException e) {
+                }
+            }
+            // the corrupt record is not rendered as received either
+            try {
+                lazy.toWire();
+                fail("IllegalStateException not thrown");
+            } catch (IllegalStateException e) {
+            }
+        }
+
+        public void test_invalid_layout() {
+            byte[] wire = new byte[] { 0, 1, (byte) 0x81, (byte) 0x80, 0, 1,
+                    0, 1, 0, 0, 0, 0, 1, 'a', 0, 0, 1, 0, 1 };
+            try {
+                Message.newLazy(wire);
+                fail("IOException not thrown");
+            } catch (IOException e) {
+            }
+        }
     }
 
     public static Test suite() {
         TestSuite s = new TestSuite();
         s.addTestSuite(Test_init.class);
+        s.addTestSuite(Test_lazy.class);
         return s;
     }
 }
@@ -668,6 +668,24 @@ public class NameTest extends TestCase {
             assertEquals(e, n);
         }
 
+        public void test_many_labels_compression() throws TextParseException,
+                WireParseException {
+            byte[] raw = new byte[] { 1, 'e', 1, 'f', 1, 'g', 1, 'h', 0, 1,
+                    'c', 1, 'd', (byte) 0xC0, 0, 1, 'a', 1, 'b', (byte) 0xC0,
+                    9 };
+            Name e = Name.fromString("a.b.c.d.e.f.g.h.");
+
+            DNSInput in = new DNSInput(raw);
+            in.jump(15);
+
+            Name n = new Name(in);
+            assertEquals(e, n);
+            assertEquals(9, n.labels());
+            assertEquals("h", n.getLabelString(7));
+            assertEquals("", n.getLabelString(8));
+            assertEquals(21, in.current());
+        }
+
         public void test_long_jump_compression() throws TextParseException,
                 WireParseException {
             // pointer to name beginning at index 256
@@ -0,0 +1,76 @@
+package biz.neustar.hopper.message;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import biz.neustar.hopper.record.NSRecord;
+import biz.neustar.hopper.record.Record;
+
+public class NameTableTest extends TestCase {
+
+    public void tearDown() {
+        Name.setInternTable(null);
+    }
+
+    public void test_capacity() {
+        assertEquals(NameTable.DEFAULT_CAPACITY, new NameTable().getCapacity());
+        assertEquals(1, new NameTable(1).getCapacity());
+        assertEquals(128, new NameTable(100).getCapacity());
+        try {
+            new NameTable(0);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void test_intern() {
+        NameTable table = new NameTable();
+        Name n1 = Name.fromConstantString("www.example.com.");
+        Name n2 = Name.fromConstantString("www.example.com.");
+        assertNotSame(n1, n2);
+        assertSame(n1, table.intern(n1));
+        assertSame(n1, table.intern(n2));
+        assertEquals(1, table.size());
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertSame(n2, table.intern(n2));
+    }
+
+    public void test_intern_preserves_case() {
+        NameTable table = new NameTable();
+        Name lower = Name.fromConstantString("www.example.com.");
+        Name upper = Name.fromConstantString("WWW.Example.com.");
+        assertSame(lower, table.intern(lower));
+        assertSame(upper, table.intern(upper));
+        assertSame(lower, table.intern(Name.fromConstantString("www.example.com.")));
+    }
+
+    public void test_bounded() {
+        NameTable table = new NameTable(4);
+        for (int i = 0; i < 100; i++) {
+            table.intern(Name.fromConstantString("host" + i + ".example."));
+        }
+        assertTrue(table.size() <= 4);
+    }
+
+    public void test_disabled() {
+        Name n = Name.fromConstantString("www.example.com.");
+        assertNull(Name.getInternTable());
+        assertSame(n, n.intern());
+    }
+
+    public void test_fromWire() throws IOException {
+        Name owner = Name.fromConstantString("example.com.");
+        Name target = Name.fromConstantString("ns1.example.com.");
+        byte[] wire = new NSRecord(owner, DClass.IN, 3600, target).toWire(Section.ANSWER);
+
+        Name.setInternTable(new NameTable());
+        Record r1 = Record.fromWire(wire, Section.ANSWER);
+        Record r2 = Record.fromWire(wire, Section.ANSWER);
+        assertEquals(owner, r1.getName());
+        assertSame(r1.getName(), r2.getName());
+        assertSame(r1.getAdditionalName(), r2.getAdditionalName());
+        assertSame(owner.intern(), r1.getName());
+    }
+}
@@ -1,17 +1,27 @@
 package biz.neustar.hopper.nio;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.ObjectName;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.logging.Slf4JLoggerFactory;
 import org.junit.Assert;
@@ -21,11 +31,16 @@ import org.junit.Test;
 
 import biz.neustar.hopper.exception.TextParseException;
 import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.EDNSOption;
 import biz.neustar.hopper.message.Message;
 import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.TCPKeepaliveOption;
 import biz.neustar.hopper.nio.example.EchoServerHandler;
 import biz.neustar.hopper.nio.example.LoggingClientHandler;
+import biz.neustar.hopper.nio.metrics.ServerMetrics;
 import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.OPTRecord;
 
 /**
  * Test for the TCP client
@@ -98,6 +113,391 @@ public class TCPClientTest {
         }
     }
 
+    @Test
+    public void asyncHandlerTCP() throws TextParseException, UnknownHostException, InterruptedException {
+
+        // responses are completed later from a thread outside the server
+        final ScheduledExecutorService backend = Executors.newSingleThreadScheduledExecutor();
+        DnsServer server = DnsServer.builder().port(0).asyncServerMessageHandler(new AsyncServerMessageHandler() {
+
+            @Override
+            public void handleRequest(final Message request, final ResponseCallback callback) {
+                backend.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.respond(request);
+                    }
+                }, 10, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+
+        int messageCount = 20;
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(messageCount);
+        DnsClient client = DnsClient.builder().clientMessageHandler(responseReceivedTrap).build();
+        for (int i = 0; i < messageCount; i++) {
+            client.sendTCP(getQuery(i), serverAddress);
+        }
+
+        try {
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            client.stop();
+            server.stop();
+            backend.shutdown();
+        }
+    }
+
+    @Test
+    public void pipelinedTCPExecutorSettings() throws Exception {
+
+        // the pipelined pool takes its settings from the configured one, and
+        // the server shuts it down
+        final String prefix = "pipelined-" + System.nanoTime() + "-";
+        final AtomicInteger threadCount = new AtomicInteger();
+        OrderedMemoryAwareThreadPoolExecutor pool = new OrderedMemoryAwareThreadPoolExecutor(2, 0, 0, 30, TimeUnit.SECONDS, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, prefix + threadCount.incrementAndGet());
+            }
+        });
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        DnsServer server = DnsServer.builder().port(0).tcpPipelining(true).omaThreadPoolExecutor(pool).serverMessageHandler(new EchoServerHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                threads.add(Thread.currentThread().getName());
+                return request;
+            }
+        }).build();
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).build();
+        try {
+            client.queryTCP(getQuery(0), new InetSocketAddress("localhost", server.getLocalAddress().getPort())).get(2, TimeUnit.SECONDS);
+            Assert.assertEquals(1, threads.size());
+            Assert.assertTrue(threads.get(0).startsWith(prefix));
+        } finally {
+            client.stop();
+            server.stop();
+        }
+        pool.shutdown();
+        Assert.assertTrue(pool.awaitTermination(2, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (liveThreads(prefix) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, liveThreads(prefix));
+    }
+
+    private static int liveThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void pipelinedTCP() throws TextParseException, UnknownHostException, InterruptedException {
+
+        // the first query is slow, the others must not wait for it
+        DnsServer server = DnsServer.builder().port(0).tcpPipelining(true).serverMessageHandler(new EchoServerHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                if (request.getHeader().getID() == 0) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return request;
+            }
+        }).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+
+        int messageCount = 5;
+        final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(messageCount) {
+
+            @Override
+            public void handleResponse(Message response) {
+                ids.add(response.getHeader().getID());
+                super.handleResponse(response);
+            }
+        };
+        DnsClient client = DnsClient.builder().clientMessageHandler(responseReceivedTrap).build();
+        for (int i = 0; i < messageCount; i++) {
+            Message query = getQuery(i);
+            query.getHeader().setID(i);
+            client.sendTCP(query, serverAddress);
+        }
+
+        try {
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            Assert.assertEquals(Integer.valueOf(0), ids.get(messageCount - 1));
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void executorTCP() throws TextParseException, UnknownHostException, InterruptedException {
+
+        // without pipelining the queries of a connection are answered in order
+        DnsServer server = DnsServer.builder().port(0).executor(Executors.newCachedThreadPool()).serverMessageHandler(new EchoServerHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                if (request.getHeader().getID() == 0) {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return request;
+            }
+        }).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+
+        int messageCount = 5;
+        final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(messageCount) {
+
+            @Override
+            public void handleResponse(Message response) {
+                ids.add(response.getHeader().getID());
+                super.handleResponse(response);
+            }
+        };
+        DnsClient client = DnsClient.builder().executor(Executors.newCachedThreadPool()).clientMessageHandler(responseReceivedTrap).build();
+        // connected first, so that the queries are written in order
+        client.connectTCP(serverAddress).awaitUninterruptibly();
+        for (int i = 0; i < messageCount; i++) {
+            Message query = getQuery(i);
+            query.getHeader().setID(i);
+            client.sendTCP(query, serverAddress);
+        }
+
+        try {
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), ids);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void queryTCP() throws Exception {
+
+        // responses come back out of order and are matched by ID
+        DnsServer server = DnsServer.builder().port(0).tcpPipelining(true).serverMessageHandler(new EchoServerHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                if (request.getQuestion().getName().toString().startsWith("0.")) {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return request;
+            }
+        }).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).build();
+        try {
+            List<QueryFuture> futures = new ArrayList<QueryFuture>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(client.queryTCP(getQuery(i), serverAddress));
+            }
+            for (int i = 0; i < 5; i++) {
+                Message response = futures.get(i).get(2, TimeUnit.SECONDS);
+                Assert.assertEquals(futures.get(i).getQuery().getHeader().getID(), response.getHeader().getID());
+                Assert.assertEquals(getQuery(i).getQuestion().getName(), response.getQuestion().getName());
+            }
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void connectionPoolTCP() throws Exception {
+
+        final AtomicInteger entered = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        DnsServer server = DnsServer.builder().port(0).tcpPipelining(true).tcpIdleTimeoutSeconds(1).serverMessageHandler(new EchoServerHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                entered.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return request;
+            }
+        }).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).tcpMaxConnections(2).tcpMaxInFlight(3).build();
+        try {
+            // two connections of three queries, the rest wait
+            List<QueryFuture> futures = new ArrayList<QueryFuture>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(client.queryTCP(getQuery(i), serverAddress));
+            }
+            Thread.sleep(500);
+            Assert.assertEquals(6, entered.get());
+            Assert.assertEquals(2, client.getTcpConnectionCount(serverAddress));
+            release.countDown();
+            for (QueryFuture future : futures) {
+                Assert.assertNotNull(future.get(2, TimeUnit.SECONDS));
+            }
+
+            // the server closes the idle connections, the next query reconnects
+            long deadline = System.currentTimeMillis() + 3000;
+            while (client.getTcpConnectionCount(serverAddress) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, client.getTcpConnectionCount(serverAddress));
+            Assert.assertNotNull(client.queryTCP(getQuery(0), serverAddress).get(2, TimeUnit.SECONDS));
+            Assert.assertEquals(1, client.getTcpConnectionCount(serverAddress));
+        } finally {
+            release.countDown();
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void idleTimeoutTCP() throws TextParseException, UnknownHostException, InterruptedException {
+
+        DnsServer server = DnsServer.builder().port(0).tcpIdleTimeoutSeconds(1).serverMessageHandler(new EchoServerHandler()).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        final List<Message> responses = Collections.synchronizedList(new ArrayList<Message>());
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(1) {
+
+            @Override
+            public void handleResponse(Message response) {
+                responses.add(response);
+                super.handleResponse(response);
+            }
+        };
+        DnsClient client = DnsClient.builder().clientMessageHandler(responseReceivedTrap).build();
+
+        // ask for the keepalive timeout
+        Message query = getQuery(0);
+        query.addRecord(new OPTRecord(4096, 0, 0, 0, Arrays.<EDNSOption> asList(new TCPKeepaliveOption())), Section.ADDITIONAL);
+        client.sendTCP(query, serverAddress);
+        try {
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            List<EDNSOption> keepalive = responses.get(0).getOPT().getOptions(EDNSOption.Code.TCP_KEEPALIVE.getValue());
+            Assert.assertEquals(1, keepalive.size());
+            Assert.assertEquals(10, ((TCPKeepaliveOption) keepalive.get(0)).getTimeout());
+
+            // the idle connection is closed by the server
+            ChannelFuture connectTCP = client.connectTCP(serverAddress);
+            Assert.assertTrue(connectTCP.getChannel().getCloseFuture().await(3000));
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void keepaliveSharedResponseTCP() throws Exception {
+
+        // the application answers every query with the same message
+        final Message shared = new Message(0);
+        shared.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+        DnsServer server = DnsServer.builder().port(0).tcpIdleTimeoutSeconds(1).serverMessageHandler(new EchoServerHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                return shared;
+            }
+        }).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        final List<Message> responses = Collections.synchronizedList(new ArrayList<Message>());
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(3) {
+
+            @Override
+            public void handleResponse(Message response) {
+                responses.add(response);
+                super.handleResponse(response);
+            }
+        };
+        DnsClient client = DnsClient.builder().clientMessageHandler(responseReceivedTrap).build();
+        try {
+            client.connectTCP(serverAddress).awaitUninterruptibly();
+            for (int i = 0; i < 2; i++) {
+                Message query = getQuery(i);
+                query.addRecord(new OPTRecord(4096, 0, 0, 0, Arrays.<EDNSOption> asList(new TCPKeepaliveOption())), Section.ADDITIONAL);
+                client.sendTCP(query, serverAddress);
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while (responses.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            client.sendUDP(getQuery(2), serverAddress);
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+
+            int advertised = 0;
+            for (Message response : responses) {
+                List<EDNSOption> keepalive = response.getOPT().getOptions(EDNSOption.Code.TCP_KEEPALIVE.getValue());
+                Assert.assertTrue(keepalive.size() <= 1);
+                advertised += keepalive.size();
+            }
+            // both TCP responses, and not the UDP one
+            Assert.assertEquals(2, advertised);
+            Assert.assertTrue(shared.getOPT().getOptions().isEmpty());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void connectionLimitTCP() throws InterruptedException, TextParseException, UnknownHostException {
+
+        DnsServer server = DnsServer.builder().port(0).maxTcpConnectionsPerClient(1).serverMessageHandler(new EchoServerHandler()).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(1);
+        DnsClient first = DnsClient.builder().clientMessageHandler(responseReceivedTrap).build();
+        DnsClient second = DnsClient.builder().clientMessageHandler(new LoggingClientHandler()).build();
+        try {
+            ChannelFuture accepted = first.connectTCP(serverAddress);
+            Assert.assertTrue(accepted.await(500));
+            Assert.assertTrue(accepted.isSuccess());
+            // make sure the server has accounted for the first connection
+            accepted.getChannel().write(getQuery(0));
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+
+            // the second connection from the same address is dropped
+            ChannelFuture refused = second.connectTCP(serverAddress);
+            Assert.assertTrue(refused.getChannel().getCloseFuture().await(2000));
+            Assert.assertTrue(accepted.getChannel().isOpen());
+        } finally {
+            first.stop();
+            second.stop();
+            server.stop();
+        }
+    }
+
     @Test
     public void manyClientsOneServerTCP() throws TextParseException, UnknownHostException, InterruptedException {
 
@@ -183,6 +583,44 @@ public class TCPClientTest {
         }
     }
 
+    @Test
+    public void metrics() throws Exception {
+
+        ServerMetrics metrics = new ServerMetrics();
+        DnsServer server = DnsServer.builder().port(0).metrics(metrics).serverMessageHandler(new EchoServerHandler()).build();
+        SocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        MessageReceivedTrap responseReceivedTrap = new MessageReceivedTrap(2);
+        DnsClient udpClient = DnsClient.builder().clientMessageHandler(responseReceivedTrap).closeConnectionOnMessageReceipt(true).build();
+        DnsClient tcpClient = DnsClient.builder().clientMessageHandler(responseReceivedTrap).closeConnectionOnMessageReceipt(true).build();
+        try {
+            udpClient.sendUDP(getQuery(0), serverAddress);
+            tcpClient.sendTCP(getQuery(1), serverAddress);
+            Assert.assertTrue(responseReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+
+            Assert.assertEquals(1, metrics.getUdpRequests());
+            Assert.assertEquals(1, metrics.getTcpRequests());
+            Assert.assertEquals(1, metrics.getUdpResponses());
+            Assert.assertEquals(1, metrics.getTcpResponses());
+            Assert.assertEquals(Long.valueOf(2), metrics.getOpcodeCounts().get("QUERY"));
+            Assert.assertEquals(Long.valueOf(2), metrics.getQueryTypeCounts().get("A"));
+            Assert.assertEquals(Long.valueOf(2), metrics.getRcodeCounts().get("NOERROR"));
+            Assert.assertEquals(2, metrics.getDecodeLatency().getCount());
+            Assert.assertEquals(2, metrics.getHandlerLatency().getCount());
+
+            String name = "biz.neustar.hopper:type=DnsServer,name=metricsTest";
+            metrics.registerMBean(name);
+            try {
+                Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(name), "TcpRequests"));
+            } finally {
+                metrics.unregisterMBean();
+            }
+        } finally {
+            udpClient.stop();
+            tcpClient.stop();
+            server.stop();
+        }
+    }
+
     public static Message getQuery(int i) throws TextParseException, UnknownHostException {
 
         return Message.newQuery(new ARecord(new Name(i + ".example.biz."), DClass.IN, 0l, InetAddress
@@ -1,14 +1,61 @@
 package biz.neustar.hopper.nio;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 import biz.neustar.hopper.exception.TextParseException;
+import biz.neustar.hopper.message.DClass;
+import biz.neustar.hopper.message.Flag;
+import biz.neustar.hopper.message.Message;
+import biz.neustar.hopper.message.Name;
+import biz.neustar.hopper.message.Opcode;
+import biz.neustar.hopper.message.Rcode;
+import biz.neustar.hopper.message.Section;
+import biz.neustar.hopper.message.Type;
 import biz.neustar.hopper.nio.example.EchoServerHandler;
+import biz.neustar.hopper.nio.handler.AdmissionController;
+import biz.neustar.hopper.nio.handler.DNSMessageEncoder;
+import biz.neustar.hopper.nio.handler.PacketCaptureHandler;
+import biz.neustar.hopper.nio.handler.QueryFilter;
+import biz.neustar.hopper.nio.handler.ResponseCache;
+import biz.neustar.hopper.nio.handler.ResponseRateLimiter;
+import biz.neustar.hopper.nio.handler.Responses;
+import biz.neustar.hopper.nio.handler.ReusePortHandler;
+import biz.neustar.hopper.nio.handler.VirtualThreads;
+import biz.neustar.hopper.nio.metrics.ServerMetrics;
+import biz.neustar.hopper.record.ARecord;
+import biz.neustar.hopper.record.Record;
 
 /**
  * Test for the UDP client
@@ -29,4 +76,984 @@ public class UDPClientTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void inlineHandler() throws TextParseException, UnknownHostException, InterruptedException {
+
+        // answered on the I/O worker that read the request
+        final AtomicReference<String> handledBy = new AtomicReference<String>();
+        DnsServer server = DnsServer.builder().port(0).serverMessageHandler(new NonBlockingServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                handledBy.set(Thread.currentThread().getName());
+                return request;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(1);
+        DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).build();
+        client.sendUDP(TCPClientTest.getQuery(0), new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+        try {
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            Assert.assertTrue(handledBy.get(), handledBy.get().startsWith("New I/O"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void lazyDecoding() throws Exception {
+
+        final AtomicInteger answerSize = new AtomicInteger(-1);
+        DnsServer server = DnsServer.builder().port(0).lazyDecoding(true).serverMessageHandler(new NonBlockingServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                request.getHeader().setFlag(Flag.QR);
+                answerSize.set(request.getSectionArray(Section.ANSWER).length);
+                return request;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).build();
+        try {
+            Message query = TCPClientTest.getQuery(0);
+            Message response = client.query(query, new InetSocketAddress("localhost", server.getLocalAddress().getPort())).get(2, TimeUnit.SECONDS);
+            Assert.assertTrue(response.getHeader().isFlagSet(Flag.QR));
+            Assert.assertEquals(query.getQuestion().getName(), response.getQuestion().getName());
+            Assert.assertEquals(0, answerSize.get());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void reusePort() throws TextParseException, UnknownHostException, InterruptedException {
+
+        Assume.assumeTrue(ReusePortHandler.isSupported());
+        int messageCount = 20;
+        DnsServer server = DnsServer.builder().port(0).udpChannelCount(4).serverMessageHandler(new EchoServerHandler()).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(messageCount);
+        try {
+            for (int i = 0; i < messageCount; i++) {
+                DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                client.sendUDP(TCPClientTest.getQuery(i), new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+            }
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void rateLimit() throws TextParseException, UnknownHostException, InterruptedException {
+
+        int messageCount = 3;
+        ResponseRateLimiter rateLimiter = ResponseRateLimiter.builder().responsesPerSecond(1).burst(1).slip(1).build();
+        DnsServer server = DnsServer.builder().port(0).responseRateLimiter(rateLimiter).serverMessageHandler(new EchoServerHandler()).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(messageCount);
+        try {
+            for (int i = 0; i < messageCount; i++) {
+                DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                client.sendUDP(TCPClientTest.getQuery(0), new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+            }
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            Assert.assertEquals(1, rateLimiter.getAllowed());
+            Assert.assertEquals(messageCount - 1, rateLimiter.getSlipped());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void responseCache() throws Exception {
+
+        final AtomicInteger handled = new AtomicInteger();
+        ResponseCache cache = ResponseCache.builder().build();
+        DnsServer server = DnsServer.builder().port(0).responseCache(cache).serverMessageHandler(new NonBlockingServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                handled.incrementAndGet();
+                Message response = Responses.reply(request, Rcode.NOERROR);
+                try {
+                    response.addRecord(new ARecord(request.getQuestion().getName(), DClass.IN, 300, InetAddress.getByName("127.0.0.1")), Section.ANSWER);
+                } catch (UnknownHostException e) {
+                    throw new IllegalStateException(e);
+                }
+                return response;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        final BlockingQueue<Message> responses = new LinkedBlockingQueue<Message>();
+        ClientMessageHandler collector = new ClientMessageHandler() {
+
+            @Override
+            public void handleResponse(Message response) {
+                responses.add(response);
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        };
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        try {
+            String[] names = { "0.example.biz.", "0.EXAMPLE.Biz.", "0.example.biz." };
+            for (int i = 0; i < names.length; i++) {
+                if (i == 2) {
+                    cache.invalidate(new Name("0.Example.biz."), Type.A);
+                }
+                Message query = Message.newQuery(Record.newRecord(new Name(names[i]), Type.A, DClass.IN));
+                DnsClient client = DnsClient.builder().clientMessageHandler(collector).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                client.sendUDP(query, serverAddress);
+                Message response = responses.poll(2, TimeUnit.SECONDS);
+                Assert.assertNotNull(response);
+                Assert.assertEquals(query.getHeader().getID(), response.getHeader().getID());
+                Assert.assertEquals(names[i], response.getQuestion().getName().toString());
+                Assert.assertEquals(1, response.getSectionArray(Section.ANSWER).length);
+            }
+            Assert.assertEquals(2, handled.get());
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(1, cache.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void queryFilter() throws Exception {
+
+        final AtomicInteger handled = new AtomicInteger();
+        QueryFilter filter = QueryFilter.builder().build();
+        DnsServer server = DnsServer.builder().port(0).queryFilter(filter).serverMessageHandler(new NonBlockingServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                handled.incrementAndGet();
+                return request;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        final BlockingQueue<Message> responses = new LinkedBlockingQueue<Message>();
+        ClientMessageHandler collector = new ClientMessageHandler() {
+
+            @Override
+            public void handleResponse(Message response) {
+                responses.add(response);
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        };
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        try {
+            Message notify = TCPClientTest.getQuery(0);
+            notify.getHeader().setOpcode(Opcode.NOTIFY);
+            Message twoQuestions = TCPClientTest.getQuery(1);
+            twoQuestions.addRecord(TCPClientTest.getQuery(2).getQuestion(), Section.QUESTION);
+            Message[] requests = { notify, twoQuestions };
+            int[] rcodes = { Rcode.NOTIMP, Rcode.FORMERR };
+            for (int i = 0; i < requests.length; i++) {
+                DnsClient client = DnsClient.builder().clientMessageHandler(collector).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                client.sendUDP(requests[i], serverAddress);
+                Message response = responses.poll(2, TimeUnit.SECONDS);
+                Assert.assertNotNull(response);
+                Assert.assertEquals(requests[i].getHeader().getID(), response.getHeader().getID());
+                Assert.assertTrue(response.getHeader().isFlagSet(Flag.QR));
+                Assert.assertEquals(rcodes[i], response.getRcode());
+            }
+
+            Message response = TCPClientTest.getQuery(3);
+            response.getHeader().setFlag(Flag.QR);
+            DnsClient client = DnsClient.builder().clientMessageHandler(collector).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(1).build();
+            client.sendUDP(response, serverAddress);
+            Assert.assertNull(responses.poll(500, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(1, filter.getDropped());
+            Assert.assertEquals(2, filter.getRejected());
+            Assert.assertEquals(0, handled.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void packetCapture() throws Exception {
+
+        final List<byte[]> received = new CopyOnWriteArrayList<byte[]>();
+        final List<byte[]> sent = new CopyOnWriteArrayList<byte[]>();
+        PacketCaptureHandler capture = PacketCaptureHandler.builder().sampleRate(2).sink(new PacketCaptureHandler.Sink() {
+
+            @Override
+            public void capture(boolean inbound, SocketAddress remote, byte[] packet) {
+                (inbound ? received : sent).add(packet);
+            }
+        }).build();
+        DnsServer server = DnsServer.builder().port(0).logging(true).packetCapture(capture).serverMessageHandler(new EchoServerHandler()).build();
+        int messageCount = 3;
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(messageCount);
+        Message first = TCPClientTest.getQuery(0);
+        try {
+            for (int i = 0; i < messageCount; i++) {
+                DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                client.sendUDP(i == 0 ? first : TCPClientTest.getQuery(i), new InetSocketAddress("localhost", server.getLocalAddress().getPort()));
+            }
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            // the first and third messages in each direction
+            Assert.assertEquals(2, received.size());
+            Assert.assertEquals(2, sent.size());
+            Assert.assertArrayEquals(first.toWire(), received.get(0));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void drain() throws Exception {
+
+        final CountDownLatch received = new CountDownLatch(1);
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        DnsServer server = DnsServer.builder().port(0).asyncServerMessageHandler(new AsyncServerMessageHandler() {
+
+            @Override
+            public void handleRequest(final Message request, final ResponseCallback callback) {
+                received.countDown();
+                scheduler.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.respond(request);
+                    }
+                }, 300, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        final MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(1);
+        final InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        Thread sender = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                    client.sendUDP(TCPClientTest.getQuery(0), serverAddress);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        try {
+            sender.start();
+            Assert.assertTrue(received.await(2, TimeUnit.SECONDS));
+            // the response is only sent once the handler calls back
+            long start = System.nanoTime();
+            Assert.assertTrue(server.drain(2, TimeUnit.SECONDS));
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            Assert.assertTrue(messageReceivedTrap.latch.await(1, TimeUnit.SECONDS));
+        } finally {
+            server.stop();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void restartOnSamePort() throws Exception {
+
+        Assume.assumeTrue(ReusePortHandler.isSupported());
+        DnsServer oldServer = DnsServer.builder().port(0).reusePort(true).serverMessageHandler(new EchoServerHandler()).build();
+        int port = oldServer.getLocalAddress().getPort();
+        DnsServer newServer = DnsServer.builder().port(port).reusePort(true).serverMessageHandler(new EchoServerHandler()).build();
+        // keep querying, from a new source port each time, through the
+        // restart; like a resolver, resend once what the old server dropped
+        // when it closed its socket
+        final InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+        final AtomicBoolean querying = new AtomicBoolean(true);
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger lost = new AtomicInteger();
+        Thread querier = new Thread() {
+
+            @Override
+            public void run() {
+                while (querying.get()) {
+                    try {
+                        DatagramSocket socket = new DatagramSocket();
+                        try {
+                            socket.setSoTimeout(500);
+                            byte[] query = TCPClientTest.getQuery(sent.getAndIncrement()).toWire();
+                            socket.send(new DatagramPacket(query, query.length, serverAddress));
+                            try {
+                                socket.receive(new DatagramPacket(new byte[512], 512));
+                            } catch (SocketTimeoutException e) {
+                                socket.send(new DatagramPacket(query, query.length, serverAddress));
+                                socket.receive(new DatagramPacket(new byte[512], 512));
+                            }
+                        } finally {
+                            socket.close();
+                        }
+                        Thread.sleep(20);
+                    } catch (Exception e) {
+                        lost.incrementAndGet();
+                    }
+                }
+            }
+        };
+        querier.start();
+        Assert.assertTrue(oldServer.drain(1, TimeUnit.SECONDS));
+        oldServer.stop();
+        Thread.sleep(200);
+        querying.set(false);
+        querier.join();
+        Assert.assertEquals(0, lost.get());
+        Assert.assertTrue(sent.get() > 10);
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(2);
+        try {
+            DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+            client.sendUDP(TCPClientTest.getQuery(0), new InetSocketAddress("localhost", port));
+            DnsClient tcpClient = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).build();
+            tcpClient.sendTCP(TCPClientTest.getQuery(1), new InetSocketAddress("localhost", port));
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            tcpClient.stop();
+        } finally {
+            newServer.stop();
+        }
+    }
+
+    @Test
+    public void admissionControl() throws Exception {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AdmissionController admission = AdmissionController.builder().maxQueuedPerClient(2).maxQueueAge(10, TimeUnit.SECONDS).action(AdmissionController.Action.REFUSED).build();
+        DnsServer server = DnsServer.builder().port(0).threadPoolSize(1).admissionController(admission).serverMessageHandler(new ServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return request;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        final BlockingQueue<Message> responses = new LinkedBlockingQueue<Message>();
+        final ClientMessageHandler collector = new ClientMessageHandler() {
+
+            @Override
+            public void handleResponse(Message response) {
+                responses.add(response);
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        };
+        final InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        try {
+            send(collector, TCPClientTest.getQuery(0), serverAddress);
+            Assert.assertTrue(entered.await(2, TimeUnit.SECONDS));
+            // two more fit the client's quota, the last two are refused
+            for (int i = 1; i < 5; i++) {
+                send(collector, TCPClientTest.getQuery(i), serverAddress);
+                if (i < 3) {
+                    while (admission.getAdmitted() <= i) {
+                        Thread.sleep(10);
+                    }
+                }
+            }
+            for (int i = 0; i < 2; i++) {
+                Message response = responses.poll(2, TimeUnit.SECONDS);
+                Assert.assertNotNull(response);
+                Assert.assertEquals(Rcode.REFUSED, response.getRcode());
+            }
+            Assert.assertEquals(2, admission.getQueueDepth());
+            release.countDown();
+            for (int i = 0; i < 3; i++) {
+                Message response = responses.poll(2, TimeUnit.SECONDS);
+                Assert.assertNotNull(response);
+                Assert.assertEquals(Rcode.NOERROR, response.getRcode());
+            }
+            Assert.assertEquals(2, admission.getShed());
+        } finally {
+            release.countDown();
+            server.stop();
+        }
+    }
+
+    /**
+     * Send a query over UDP without waiting for the response.
+     */
+    private static void send(final ClientMessageHandler handler, final Message query, final InetSocketAddress destination) {
+        new Thread() {
+
+            @Override
+            public void run() {
+                DnsClient client = DnsClient.builder().clientMessageHandler(handler).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(3).build();
+                client.sendUDP(query, destination);
+            }
+        }.start();
+    }
+
+    @Test
+    public void responseCacheMetrics() throws Exception {
+
+        final AtomicInteger handled = new AtomicInteger();
+        ResponseCache cache = ResponseCache.builder().build();
+        ServerMetrics metrics = new ServerMetrics();
+        DnsServer server = DnsServer.builder().port(0).responseCache(cache).queryFilter(QueryFilter.builder().build()).metrics(metrics).serverMessageHandler(new NonBlockingServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                handled.incrementAndGet();
+                Message response = Responses.reply(request, Rcode.NOERROR);
+                try {
+                    response.addRecord(new ARecord(request.getQuestion().getName(), DClass.IN, 300, InetAddress.getByName("127.0.0.1")), Section.ANSWER);
+                } catch (UnknownHostException e) {
+                    throw new IllegalStateException(e);
+                }
+                return response;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        final BlockingQueue<Message> responses = new LinkedBlockingQueue<Message>();
+        ClientMessageHandler collector = new ClientMessageHandler() {
+
+            @Override
+            public void handleResponse(Message response) {
+                responses.add(response);
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        };
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        try {
+            // answered by the handler, from the cache, and by the filter
+            Message notify = TCPClientTest.getQuery(0);
+            notify.getHeader().setOpcode(Opcode.NOTIFY);
+            Message[] queries = { TCPClientTest.getQuery(0), TCPClientTest.getQuery(0), notify };
+            for (Message query : queries) {
+                DnsClient client = DnsClient.builder().clientMessageHandler(collector).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                client.sendUDP(query, serverAddress);
+                Assert.assertNotNull(responses.poll(2, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, handled.get());
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(3, metrics.getUdpRequests());
+            Assert.assertEquals(3, metrics.getUdpResponses());
+            Assert.assertEquals(Long.valueOf(2), metrics.getOpcodeCounts().get("QUERY"));
+            Assert.assertEquals(Long.valueOf(1), metrics.getOpcodeCounts().get("NOTIFY"));
+            Assert.assertEquals(Long.valueOf(3), metrics.getQueryTypeCounts().get("A"));
+            Assert.assertEquals(Long.valueOf(2), metrics.getRcodeCounts().get("NOERROR"));
+            Assert.assertEquals(Long.valueOf(1), metrics.getRcodeCounts().get("NOTIMP"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void encoderBufferSize() throws Exception {
+
+        EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(new DNSMessageEncoder());
+        Message large = TCPClientTest.getQuery(0);
+        for (int i = 0; i < 200; i++) {
+            large.addRecord(new ARecord(new Name("host" + i + ".example.biz."), DClass.IN, 60, InetAddress.getByName("127.0.0.1")), Section.ANSWER);
+        }
+        encoder.offer(large);
+        ChannelBuffer buffer = encoder.poll();
+        Assert.assertTrue(buffer.capacity() > 4096);
+        // a small message after a large one gets a small buffer
+        encoder.offer(TCPClientTest.getQuery(1));
+        buffer = encoder.poll();
+        Assert.assertTrue(buffer.capacity() <= 512);
+        encoder.finish();
+    }
+
+    @Test
+    public void queueDepth() throws Exception {
+        queueDepth(DnsServer.builder().threadPoolSize(1));
+    }
+
+    @Test
+    public void queueDepthExecutor() throws Exception {
+        queueDepth(DnsServer.builder().executor(Executors.newFixedThreadPool(1)));
+    }
+
+    /**
+     * Check that the requests waiting behind a blocked handler are reported
+     * as the queue depth.
+     */
+    private static void queueDepth(DnsServer.Builder builder) throws Exception {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ServerMetrics metrics = new ServerMetrics();
+        DnsServer server = builder.port(0).metrics(metrics).serverMessageHandler(new ServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return request;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(4);
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        try {
+            send(messageReceivedTrap, TCPClientTest.getQuery(0), serverAddress);
+            Assert.assertTrue(entered.await(2, TimeUnit.SECONDS));
+            for (int i = 1; i < 4; i++) {
+                send(messageReceivedTrap, TCPClientTest.getQuery(i), serverAddress);
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while (metrics.getQueueDepth() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(3, metrics.getQueueDepth());
+            release.countDown();
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            Assert.assertEquals(0, metrics.getQueueDepth());
+        } finally {
+            release.countDown();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void listeners() throws Exception {
+
+        ServerMetrics metrics = new ServerMetrics();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DnsServer server = DnsServer.builder().listenUdp(new InetSocketAddress(loopback, 0)).listen(new InetSocketAddress(loopback, 0)).metrics(metrics).serverMessageHandler(new EchoServerHandler()).build();
+        try {
+            Assert.assertEquals(2, server.getUdpAddresses().size());
+            Assert.assertEquals(1, server.getTcpAddresses().size());
+            Assert.assertEquals(server.getUdpAddresses().get(1).getPort(), server.getTcpAddresses().get(0).getPort());
+            MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(3);
+            int i = 0;
+            for (InetSocketAddress address : server.getUdpAddresses()) {
+                DnsClient client = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).udpTimeoutSeconds(2).build();
+                client.sendUDP(TCPClientTest.getQuery(i++), address);
+            }
+            DnsClient tcpClient = DnsClient.builder().clientMessageHandler(messageReceivedTrap).closeConnectionOnMessageReceipt(true).build();
+            tcpClient.sendTCP(TCPClientTest.getQuery(i), server.getTcpAddresses().get(0));
+            Assert.assertTrue(messageReceivedTrap.latch.await(2, TimeUnit.SECONDS));
+            tcpClient.stop();
+            Assert.assertEquals(2, metrics.getUdpRequests());
+            Assert.assertEquals(1, metrics.getTcpRequests());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void executor() throws Exception {
+        concurrentHandlers(DnsServer.builder().executor(Executors.newCachedThreadPool()));
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        concurrentHandlers(DnsServer.builder().virtualThreads(true));
+    }
+
+    /**
+     * Check that more UDP requests than the default pool size are handled at
+     * the same time.
+     */
+    private static void concurrentHandlers(DnsServer.Builder builder) throws Exception {
+
+        final int concurrency = 20;
+        final CountDownLatch entered = new CountDownLatch(concurrency);
+        // room for every datagram of the burst
+        Map<String, Object> udpOptions = new HashMap<String, Object>();
+        udpOptions.put("receiveBufferSize", 65536);
+        DnsServer server = builder.port(0).udpOptions(udpOptions).serverMessageHandler(new ServerMessageHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                entered.countDown();
+                try {
+                    entered.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return request;
+            }
+
+            @Override
+            public void handleException(Throwable throwable) {
+            }
+        }).build();
+        MessageReceivedTrap messageReceivedTrap = new MessageReceivedTrap(concurrency);
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                send(messageReceivedTrap, TCPClientTest.getQuery(i), serverAddress);
+            }
+            Assert.assertTrue(entered.await(3, TimeUnit.SECONDS));
+            Assert.assertTrue(messageReceivedTrap.latch.await(3, TimeUnit.SECONDS));
+            Assert.assertTrue(server.drain(1, TimeUnit.SECONDS));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void query() throws Exception {
+
+        // room for every datagram of the burst
+        Map<String, Object> udpOptions = new HashMap<String, Object>();
+        udpOptions.put("receiveBufferSize", 65536);
+        DnsServer server = DnsServer.builder().port(0).udpOptions(udpOptions).serverMessageHandler(new EchoServerHandler()).build();
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).udpChannelMaxQueries(10).build();
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        try {
+            // many queries in flight, on channels that are replaced as they go
+            List<QueryFuture> futures = new ArrayList<QueryFuture>();
+            for (int i = 0; i < 100; i++) {
+                Message query = TCPClientTest.getQuery(i);
+                query.getHeader().setID(0);
+                futures.add(client.query(query, serverAddress));
+            }
+            for (int i = 0; i < 100; i++) {
+                Message response = futures.get(i).get(2, TimeUnit.SECONDS);
+                Assert.assertEquals(futures.get(i).getQuery().getHeader().getID(), response.getHeader().getID());
+                Assert.assertEquals(futures.get(i).getQuery().getQuestion().getName(), response.getQuestion().getName());
+            }
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void queryTimeout() throws Exception {
+
+        DatagramSocket silent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).queryTimeoutMillis(200).build();
+        try {
+            final CountDownLatch notified = new CountDownLatch(1);
+            QueryFuture future = client.query(TCPClientTest.getQuery(0), silent.getLocalSocketAddress());
+            future.addListener(new QueryFutureListener() {
+
+                @Override
+                public void operationComplete(QueryFuture f) {
+                    notified.countDown();
+                }
+            });
+            Assert.assertTrue(notified.await(2, TimeUnit.SECONDS));
+            Assert.assertFalse(future.isSuccess());
+            Assert.assertTrue(future.getCause() instanceof TimeoutException);
+        } finally {
+            client.stop();
+            silent.close();
+        }
+    }
+
+    @Test
+    public void forgedResponses() throws Exception {
+
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        final MessageReceivedTrap unmatched = new MessageReceivedTrap(2);
+        DnsClient client = DnsClient.builder().clientMessageHandler(unmatched).build();
+        Thread responder = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    server.receive(packet);
+                    Message query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+                    // wrong ID, then wrong question, then the answer
+                    Message forged = (Message) query.clone();
+                    forged.getHeader().setID((query.getHeader().getID() + 1) & 0xFFFF);
+                    reply(forged, packet);
+                    forged = TCPClientTest.getQuery(1);
+                    forged.getHeader().setID(query.getHeader().getID());
+                    reply(forged, packet);
+                    reply(query, packet);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            private void reply(Message response, DatagramPacket packet) throws IOException {
+                response.getHeader().setFlag(Flag.QR);
+                byte[] wire = response.toWire();
+                server.send(new DatagramPacket(wire, wire.length, packet.getSocketAddress()));
+            }
+        };
+        responder.start();
+        try {
+            Message query = TCPClientTest.getQuery(0);
+            Message response = client.query(query, server.getLocalSocketAddress()).get(2, TimeUnit.SECONDS);
+            Assert.assertEquals(query.getHeader().getID(), response.getHeader().getID());
+            Assert.assertEquals(query.getQuestion().getName(), response.getQuestion().getName());
+            Assert.assertTrue(unmatched.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            client.stop();
+            server.close();
+        }
+    }
+
+    @Test
+    public void truncatedRetriedOverTCP() throws Exception {
+
+        // the first response is truncated, the others complete
+        final AtomicInteger requests = new AtomicInteger();
+        ServerMetrics metrics = new ServerMetrics();
+        DnsServer server = DnsServer.builder().port(0).metrics(metrics).serverMessageHandler(new EchoServerHandler() {
+
+            @Override
+            public Message handleRequest(Message request) {
+                if (requests.getAndIncrement() == 0) {
+                    request.getHeader().setFlag(Flag.TC);
+                }
+                return request;
+            }
+        }).build();
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).build();
+        DnsClient ignoring = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).ignoreTruncation(true).build();
+        try {
+            Message response = client.query(TCPClientTest.getQuery(0), serverAddress).get(2, TimeUnit.SECONDS);
+            Assert.assertFalse(response.getHeader().isFlagSet(Flag.TC));
+            Assert.assertEquals(1, metrics.getUdpRequests());
+            Assert.assertEquals(1, metrics.getTcpRequests());
+
+            requests.set(0);
+            response = ignoring.query(TCPClientTest.getQuery(1), serverAddress).get(2, TimeUnit.SECONDS);
+            Assert.assertTrue(response.getHeader().isFlagSet(Flag.TC));
+            Assert.assertEquals(2, metrics.getUdpRequests());
+            Assert.assertEquals(1, metrics.getTcpRequests());
+        } finally {
+            client.stop();
+            ignoring.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void queryBatch() throws Exception {
+
+        Map<String, Object> udpOptions = new HashMap<String, Object>();
+        udpOptions.put("receiveBufferSize", 65536);
+        DnsServer server = DnsServer.builder().port(0).udpOptions(udpOptions).inlineHandler(true).serverMessageHandler(new EchoServerHandler()).build();
+        final InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).build();
+        final int count = 1000;
+        final int window = 50;
+        final AtomicInteger pulled = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger maxOutstanding = new AtomicInteger();
+        // generated as the window allows
+        Iterator<QueryRequest> requests = new Iterator<QueryRequest>() {
+
+            @Override
+            public boolean hasNext() {
+                return pulled.get() < count;
+            }
+
+            @Override
+            public QueryRequest next() {
+                int outstanding = pulled.incrementAndGet() - completed.get();
+                if (outstanding > maxOutstanding.get()) {
+                    maxOutstanding.set(outstanding);
+                }
+                try {
+                    return new QueryRequest(TCPClientTest.getQuery(pulled.get()), serverAddress);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            BatchFuture batch = client.queryBatch(requests, window, new QueryFutureListener() {
+
+                @Override
+                public void operationComplete(QueryFuture future) {
+                    completed.incrementAndGet();
+                }
+            });
+            Assert.assertTrue(batch.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(count, batch.getSucceeded());
+            Assert.assertEquals(0, batch.getFailed());
+            Assert.assertEquals(count, completed.get());
+            Assert.assertTrue(maxOutstanding.get() <= window);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void queryBatchIteratorFailure() throws Exception {
+
+        DnsServer server = DnsServer.builder().port(0).inlineHandler(true).serverMessageHandler(new EchoServerHandler()).build();
+        final InetSocketAddress serverAddress = new InetSocketAddress("localhost", server.getLocalAddress().getPort());
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).build();
+        final IllegalStateException failure = new IllegalStateException("no more");
+        // fails after a few requests
+        Iterator<QueryRequest> requests = new Iterator<QueryRequest>() {
+            private int pulled;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public QueryRequest next() {
+                if (pulled == 5) {
+                    throw failure;
+                }
+                try {
+                    return new QueryRequest(TCPClientTest.getQuery(pulled++), serverAddress);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            BatchFuture batch = client.queryBatch(requests, 2, null);
+            Assert.assertTrue(batch.await(5, TimeUnit.SECONDS));
+            Assert.assertSame(failure, batch.getCause());
+            Assert.assertEquals(5, batch.getSucceeded());
+            Assert.assertEquals(0, batch.getFailed());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void queryBatchReplacesChannels() throws Exception {
+
+        // the writes fail on the I/O thread, which must not bind the channels
+        // that replace the used ones
+        final InetSocketAddress unreachable = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        final List<Thread> ioThreads = new CopyOnWriteArrayList<Thread>();
+        NioDatagramChannelFactory factory = new NioDatagramChannelFactory(Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                ioThreads.add(thread);
+                return thread;
+            }
+        }));
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).nioDatagramChannelFactory(factory).udpChannelCount(1).udpChannelMaxQueries(1).build();
+        final int count = 10;
+        final List<Thread> pulledBy = new CopyOnWriteArrayList<Thread>();
+        Iterator<QueryRequest> requests = new Iterator<QueryRequest>() {
+
+            @Override
+            public boolean hasNext() {
+                return pulledBy.size() < count;
+            }
+
+            @Override
+            public QueryRequest next() {
+                pulledBy.add(Thread.currentThread());
+                try {
+                    return new QueryRequest(TCPClientTest.getQuery(pulledBy.size()), unreachable);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            BatchFuture batch = client.queryBatch(requests, 1, null);
+            Assert.assertTrue(batch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(count, batch.getFailed());
+            for (Thread thread : pulledBy) {
+                Assert.assertFalse(thread.getName(), ioThreads.contains(thread));
+            }
+        } finally {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void queryBatchLimitsQueriesPerChannel() throws Exception {
+
+        // a window wider than a channel may send, counted by source port
+        DatagramSocket silent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        silent.setReceiveBufferSize(65536);
+        silent.setSoTimeout(2000);
+        DnsClient client = DnsClient.builder().clientMessageHandler(new MessageReceivedTrap(0)).udpChannelCount(1).udpChannelMaxQueries(10).queryTimeoutMillis(200).build();
+        final int count = 30;
+        List<QueryRequest> requests = new ArrayList<QueryRequest>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new QueryRequest(TCPClientTest.getQuery(i), silent.getLocalSocketAddress()));
+        }
+        try {
+            BatchFuture batch = client.queryBatch(requests.iterator(), count, null);
+            Map<Integer, Integer> perPort = new HashMap<Integer, Integer>();
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            for (int i = 0; i < count; i++) {
+                silent.receive(packet);
+                Integer sent = perPort.get(packet.getPort());
+                perPort.put(packet.getPort(), sent == null ? 1 : sent + 1);
+            }
+            for (Integer sent : perPort.values()) {
+                Assert.assertTrue(String.valueOf(sent), sent <= 10);
+            }
+            Assert.assertTrue(batch.await(5, TimeUnit.SECONDS));
+        } finally {
+            client.stop();
+            silent.close();
+        }
+    }
+
+}